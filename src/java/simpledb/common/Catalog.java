@@ -6,6 +6,7 @@ import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -145,15 +146,30 @@ public class Catalog {
         return _getTable(id).name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their underlying files */
     public void clear() {
         // some code goes here
+        for (Db db : idMap.values()) {
+            if (db.dbFile instanceof Closeable) {
+                try {
+                    ((Closeable) db.dbFile).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         idMap.clear();
         nameMap.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form
+     * <pre>
+     *     name (field type [pk], field type, ...) [mapped]
+     * </pre>
+     * where the optional trailing <code>mapped</code> option makes the table's
+     * HeapFile read its pages through a memory mapping.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -191,10 +207,18 @@ public class Catalog {
                         }
                     }
                 }
+                boolean mapped = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (options.equalsIgnoreCase("mapped"))
+                    mapped = true;
+                else if (!options.isEmpty()) {
+                    System.out.println("Unknown table option " + options);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
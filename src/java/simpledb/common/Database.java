@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -13,6 +14,22 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
+ * <p>
+ * The page replacement policy of the buffer pool is chosen at startup with
+ * the system property simpledb.storage.ReplacementPolicy, e.g.
+ * -Dsimpledb.storage.ReplacementPolicy=arc. The choices are lru (the
+ * default), clock, 2q, lru-k and arc. The number of pages sequential scans
+ * read ahead is set with simpledb.storage.PrefetchDepth (0 disables it).
+ * Setting simpledb.storage.PageCleaner to a number of milliseconds starts
+ * the buffer pool's background page cleaner with that interval, and
+ * simpledb.storage.LockEscalationThreshold sets how many page locks a
+ * transaction may hold on one table before they are escalated to a table
+ * lock (0 disables escalation). simpledb.storage.GroupCommitWindow is the
+ * number of microseconds a group commit waits for more commits before it
+ * forces the log (0 by default), simpledb.storage.RecoveryThreads the
+ * number of threads log recovery redoes and undoes updates with (the number
+ * of processors by default), and simpledb.storage.LogSegmentSize the size in
+ * bytes of the segment files a new log is split into (16 MB by default).
  * 
  * @Threadsafe
  */
@@ -20,24 +37,55 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final ReplacementPolicy.Type _replacementPolicy;
+    private final int _prefetchDepth;
+    private final long _cleanerInterval;
+    private final int _lockEscalationThreshold;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _replacementPolicy = configuredReplacementPolicy();
+        _prefetchDepth = Integer.getInteger("simpledb.storage.PrefetchDepth", BufferPool.DEFAULT_PREFETCH_DEPTH);
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, _replacementPolicy);
+        _cleanerInterval = Long.getLong("simpledb.storage.PageCleaner", 0);
+        _bufferpool.setPrefetchDepth(_prefetchDepth);
+        _lockEscalationThreshold = Integer.getInteger("simpledb.storage.LockEscalationThreshold",
+                BufferPool.DEFAULT_LOCK_ESCALATION_THRESHOLD);
+        _bufferpool.setLockEscalationThreshold(_lockEscalationThreshold);
+        if (_cleanerInterval > 0) {
+            _bufferpool.startPageCleaner(_cleanerInterval);
+        }
         LogFile tmp = null;
         try {
-            tmp = new LogFile(new File(LOGFILENAME));
+            tmp = new LogFile(new File(LOGFILENAME),
+                    Long.getLong("simpledb.storage.LogSegmentSize", LogFile.DEFAULT_SEGMENT_SIZE));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
         _logfile = tmp;
+        _logfile.setGroupCommitWindow(Long.getLong("simpledb.storage.GroupCommitWindow", 0));
+        _logfile.setRecoveryThreads(Integer.getInteger("simpledb.storage.RecoveryThreads",
+                Runtime.getRuntime().availableProcessors()));
         // startControllerThread();
     }
 
+    private static ReplacementPolicy.Type configuredReplacementPolicy() {
+        String name = System.getProperty("simpledb.storage.ReplacementPolicy");
+        if (name == null || name.isEmpty()) {
+            return ReplacementPolicy.Type.LRU;
+        }
+        try {
+            return ReplacementPolicy.Type.forName(name);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ", using " + ReplacementPolicy.Type.LRU);
+            return ReplacementPolicy.Type.LRU;
+        }
+    }
+
     /** Return the log file of the static Database instance */
     public static LogFile getLogFile() {
         return _instance.get()._logfile;
@@ -54,15 +102,23 @@ public class Database {
     }
 
     /**
-     * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * Method used for testing -- create a new instance of the buffer pool,
+     * configured as chosen at startup, and return it
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            Database db = _instance.get();
+            BufferPool pool = new BufferPool(pages, db._replacementPolicy);
+            pool.setPrefetchDepth(db._prefetchDepth);
+            pool.setLockEscalationThreshold(db._lockEscalationThreshold);
+            db._bufferpool.stopPageCleaner();
+            if (db._cleanerInterval > 0) {
+                pool.startPageCleaner(db._cleanerInterval);
+            }
+            bufferPoolF.set(db, pool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -72,7 +128,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.stopPageCleaner();
+        old._catalog.clear();
     }
 
 }
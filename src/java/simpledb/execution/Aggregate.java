@@ -119,8 +119,9 @@ public class Aggregate extends Operator {
         child.open();
         child.rewind();
 
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        TupleBatch batch;
+        while ((batch = child.nextBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+            aggregator.mergeBatchIntoGroup(batch);
         }
         child.close();
     }
@@ -141,6 +142,23 @@ public class Aggregate extends Operator {
         }
     }
 
+    /**
+     * Operator.fetchNextBatch implementation; the groups were computed from
+     * the child's batches when the operator was opened.
+     */
+    @Override
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (iterator == null) {
+            throw new IllegalStateException("it not open yet");
+        }
+        TupleBatch out;
+        while (!batch.isFull() && (out = iterator.nextBatch(batch.remaining())) != null) {
+            for (int row = 0; row < out.size(); row++) {
+                batch.addRow(out, row);
+            }
+        }
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         if (iterator != null) {
             iterator.rewind();
@@ -174,7 +192,8 @@ public class Aggregate extends Operator {
             types.add(child.getTupleDesc().getFieldType(gfield));
             names.add(child.getTupleDesc().getFieldName(gfield));
         }
-        types.add(child.getTupleDesc().getFieldType(afield));
+        // a count is an int, whatever it counts
+        types.add(aop == Aggregator.Op.COUNT ? Type.INT_TYPE : child.getTupleDesc().getFieldType(afield));
         String aName = child.getTupleDesc().getFieldName(afield);
         if (aName != null) {
             names.add(String.format("%s(%s)", aop.toString(), aName));
@@ -79,6 +79,19 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate, as mergeTupleIntoGroup
+     * does for a tuple. This implementation merges the rows one Tuple at a
+     * time; aggregators that can work on the column vectors override it.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    default void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            mergeTupleIntoGroup(batch.getTuple(row));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
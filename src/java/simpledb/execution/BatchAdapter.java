@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter lets a parent that works a tuple at a time read a child a
+ * batch at a time: it pulls batches with the child's nextBatch() and hands
+ * their rows out one by one through next(), so a batch-native subtree, such
+ * as a Filter over a SeqScan, runs vectorized under any operator. Its own
+ * nextBatch() passes the child's batches through.
+ * <p>
+ * The opposite adapter, for a tuple-at-a-time child under a batch reader,
+ * is the default {@link OpIterator#nextBatch} implementation.
+ */
+public class BatchAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int batchSize;
+    transient private TupleBatch batch;
+    transient private int row;
+
+    /**
+     * Constructor.
+     *
+     * @param child     The operator to read a batch at a time
+     * @param batchSize The number of tuples to read from it at once
+     */
+    public BatchAdapter(OpIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    public BatchAdapter(OpIterator child) {
+        this(child, TupleBatch.DEFAULT_SIZE);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (batch == null || row == batch.size()) {
+            batch = child.nextBatch(batchSize);
+            row = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        return batch.getTuple(row++);
+    }
+
+    @Override
+    protected void fetchNextBatch(TupleBatch out) throws DbException, TransactionAbortedException {
+        // rows of a batch fetchNext() started go first
+        while (batch != null && row < batch.size() && !out.isFull()) {
+            out.addRow(batch, row++);
+        }
+        while (!out.isFull()) {
+            TupleBatch in = child.nextBatch(out.remaining());
+            if (in == null) {
+                return;
+            }
+            for (int r = 0; r < in.size(); r++) {
+                out.addRow(in, r);
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
@@ -16,6 +16,7 @@ public class Filter extends Operator {
     private final Predicate p;
     private OpIterator child;
     private OpIterator[] children;
+    private transient int[] selected;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -79,6 +80,31 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Reads batches from the child
+     * operator, no larger than the room left in batch, and appends the rows
+     * that pass the predicate, compared a whole column at a time.
+     *
+     * @see Predicate#filter(TupleBatch, int[])
+     */
+    @Override
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException,
+            DbException {
+        while (!batch.isFull()) {
+            TupleBatch in = child.nextBatch(batch.remaining());
+            if (in == null) {
+                return;
+            }
+            if (selected == null || selected.length < in.size()) {
+                selected = new int[in.capacity()];
+            }
+            int n = p.filter(in, selected);
+            for (int i = 0; i < n; i++) {
+                batch.addRow(in, selected[i]);
+            }
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -2,6 +2,8 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,6 +11,19 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join: child1, the build input, is hashed
+ * into {@link #PARTITIONS} partitions of in-memory tables. While the tables
+ * outgrow the memory budget, the largest partition in memory is spilled to
+ * a temporary file with the rest of its child1 tuples. child2 is then read
+ * once: tuples of partitions in memory are joined at once, and the others
+ * are spilled to their partition's file. Finally each spilled partition is
+ * joined from its two files. Each input is read at most twice, once from
+ * its child and once from the spill files; only a partition whose child1
+ * tuples alone outgrow the budget rereads its child2 file, once per chunk.
+ * <p>
+ * When both join fields are ints, the tables are {@link IntHashTable}s,
+ * which box no keys and are probed a batch of child2 rows at a time.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,8 +31,6 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -55,28 +68,185 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    /** the memory budget of a join unless setMemoryBudget() changes it */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /** the number of partitions child1 and child2 are split into */
+    public static final int PARTITIONS = 32;
+    /** an estimate of the bytes a child1 tuple takes in a table besides its fields */
+    private static final int TUPLE_OVERHEAD = 64;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /** One hash partition of both inputs. */
+    private static class Partition {
+        /**
+         * the child1 tuples by join key, in ints if the key is an int, or
+         * null once spilled or joined
+         */
+        Map<Field, List<Tuple>> table;
+        IntHashTable ints;
+        long tuples = 0;
+        /** the child1 and child2 tuples of a spilled partition */
+        SpillFile build, probe;
+    }
+
+    /** the value of first[] for a probe row whose partition is spilled */
+    private static final int SPILLED = -2;
+
+    transient private Partition[] partitions;
+    transient private long memoryUsed;
+    transient private int spilledPartitions;
+    // whether the join key is an int, so the tables are IntHashTables
+    transient private boolean intKeys;
+    // the spilled partition being joined, or -1 while child2 is probed,
+    // with the table of its chunk of child1 tuples and the first tuple of
+    // the next chunk
+    transient private int current;
+    transient private Map<Field, List<Tuple>> table;
+    transient private IntHashTable intTable;
+    transient private Tuple pending;
+
+    /**
+     * Set how many bytes of child1 tuples the join may hold in memory; the
+     * partitions that do not fit are spilled to temporary files.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = Math.max(1, bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return the number of partitions the last open() or rewind() spilled */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    private long tupleCost() {
+        return child1.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+    }
+
+    private static int partition(Field key) {
+        return partition(key.hashCode());
+    }
+
+    /** @return the partition of a key with hashCode() h, as an IntField's */
+    private static int partition(int h) {
+        return (h * 0x9E3779B9) >>> 27; // top 5 bits: PARTITIONS
+    }
+
+    /**
+     * Read child1 once into the partitions' tables, spilling the largest
+     * partition in memory whenever the tables outgrow the memory budget.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        partitions = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition();
+            if (intKeys) {
+                partitions[i].ints = new IntHashTable(0);
+            } else {
+                partitions[i].table = new HashMap<>();
+            }
+        }
+        memoryUsed = 0;
+        spilledPartitions = 0;
+        long cost = tupleCost();
+        TupleBatch batch;
+        while ((batch = child1.nextBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+            for (int row = 0; row < batch.size(); row++) {
+                Tuple t = batch.getTuple(row);
+                Partition p;
+                if (intKeys) {
+                    int key = batch.getInt(pred.getField1(), row);
+                    p = partitions[partition(key)];
+                    if (p.build == null) {
+                        p.ints.add(key, t);
+                    }
+                } else {
+                    Field key = t.getField(pred.getField1());
+                    p = partitions[partition(key)];
+                    if (p.build == null) {
+                        p.table.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+                    }
+                }
+                if (p.build != null) {
+                    p.build.write(t);
+                    continue;
+                }
+                p.tuples++;
+                memoryUsed += cost;
+                while (memoryUsed > memoryBudget && spillLargest()) {
+                }
+            }
+        }
+        current = -1;
+        probe = null;
+        matches = null;
+        matchTable = null;
+        if (first == null) {
+            first = new int[TupleBatch.DEFAULT_SIZE];
+        }
+    }
+
+    /** @return false if no partition is left in memory */
+    private boolean spillLargest() throws DbException {
+        Partition largest = null;
+        for (Partition p : partitions) {
+            if (p.build == null && p.tuples > 0 && (largest == null || p.tuples > largest.tuples)) {
+                largest = p;
+            }
+        }
+        if (largest == null) {
+            return false;
+        }
+        largest.build = new SpillFile(child1.getTupleDesc());
+        largest.probe = new SpillFile(child2.getTupleDesc());
+        if (intKeys) {
+            for (int row = 0; row < largest.ints.size(); row++) {
+                largest.build.write(largest.ints.get(row));
+            }
+        } else {
+            for (List<Tuple> tuples : largest.table.values()) {
+                for (Tuple t : tuples) {
+                    largest.build.write(t);
+                }
+            }
         }
-        return cnt > 0;
+        largest.table = null;
+        largest.ints = null;
+        memoryUsed -= largest.tuples * tupleCost();
+        spilledPartitions++;
+        return true;
+    }
 
+    /** Delete the spill files and drop the tables. */
+    private void cleanup() {
+        if (partitions != null) {
+            for (Partition p : partitions) {
+                if (p.build != null) {
+                    p.build.delete();
+                    p.probe.delete();
+                }
+            }
+        }
+        partitions = null;
+        table = null;
+        intTable = null;
+        pending = null;
+        probe = null;
+        matches = null;
+        matchTable = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
@@ -84,18 +254,44 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        cleanup();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
         child2.rewind();
+        build();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // the batch of child2 tuples being probed, the index of the current
+    // one, and the child1 tuples it matches that are not returned yet: a
+    // list, or a chain of rows of an IntHashTable
+    transient private TupleBatch probe = null;
+    transient private int probeRow;
+    transient private List<Tuple> matches = null;
+    transient private int matchIdx;
+    transient private IntHashTable matchTable = null;
+    transient private int matchRow;
+    // with int keys, the first matching row of each probe row, or -1, or
+    // SPILLED
+    transient private int[] first;
+
+    /** @return the next child1 tuple that matches the probe row, or null */
+    private Tuple nextMatch() {
+        if (matchTable != null) {
+            if (matchRow < 0) {
+                return null;
+            }
+            Tuple t = matchTable.get(matchRow);
+            matchRow = matchTable.next(matchRow);
+            return t;
+        }
+        if (matches == null || matchIdx == matches.size()) {
+            return null;
+        }
+        return matches.get(matchIdx++);
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -115,49 +311,189 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Tuple t1;
+        while ((t1 = nextMatch()) == null) {
+            if (!advance()) {
+                return null;
+            }
+        }
 
         int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
+        int td2n = probe.getTupleDesc().numFields();
 
         // set fields in combined tuple
         Tuple t = new Tuple(comboTD);
         for (int i = 0; i < td1n; i++)
             t.setField(i, t1.getField(i));
         for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
+            t.setField(td1n + i, probe.getField(i, probeRow));
         return t;
-
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    /**
+     * Operator.fetchNextBatch implementation: the same join, with child2
+     * read and probed a batch at a time and the joined rows written straight
+     * into batch's column vectors.
+     */
+    @Override
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        while (!batch.isFull()) {
+            Tuple t1 = nextMatch();
+            if (t1 != null) {
+                batch.addJoined(t1, probe, probeRow);
+            } else if (!advance()) {
+                return;
+            }
         }
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+    /**
+     * Move on to the next probe tuple that matches a table: the next tuple
+     * of child2, whose partition is probed if it is in memory and spilled
+     * otherwise, and once child2 is done, the spilled child2 tuples of each
+     * spilled partition against its child1 tuples. With int keys, each
+     * batch of probe rows is looked up at once, see {@link #probeInts}.
+     *
+     * @return false if there are no more matches
+     */
+    private boolean advance() throws TransactionAbortedException, DbException {
+        matches = null;
+        matchTable = null;
+        while (true) {
+            if (intKeys && probe != null && ++probeRow < probe.size()) {
+                int row = first[probeRow];
+                if (row == SPILLED) {
+                    int key = probe.getInt(pred.getField2(), probeRow);
+                    partitions[partition(key)].probe.write(probe, probeRow);
+                } else if (row >= 0) {
+                    matchTable = current < 0
+                            ? partitions[partition(probe.getInt(pred.getField2(), probeRow))].ints
+                            : intTable;
+                    matchRow = row;
+                    return true;
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
+            }
+            if (!intKeys && probe != null && ++probeRow < probe.size()) {
+                Field key = probe.getField(pred.getField2(), probeRow);
+                Map<Field, List<Tuple>> t = table;
+                if (current < 0) {
+                    Partition p = partitions[partition(key)];
+                    if (p.build != null) {
+                        p.probe.write(probe, probeRow);
+                        continue;
+                    }
+                    t = p.table;
+                }
+                matches = t.get(key);
+                if (matches != null) {
+                    matchIdx = 0;
+                    return true;
+                }
+                continue;
+            }
+            if (current == PARTITIONS) {
+                return false;
+            }
+            probe = current < 0 ? child2.nextBatch(TupleBatch.DEFAULT_SIZE)
+                    : partitions[current].probe.readBatch(TupleBatch.DEFAULT_SIZE);
+            probeRow = -1;
+            if (probe == null) {
+                if (!nextChunk()) {
+                    return false;
+                }
+            } else if (intKeys) {
+                probeInts();
+            }
+        }
+    }
 
+    /**
+     * Fill first[] with the first matching row of each row of the probe
+     * batch: from the table of its partition while child2 is probed, and
+     * from the chunk's table, in one bulk probe, after that.
+     */
+    private void probeInts() {
+        int[] keys = probe.intColumn(pred.getField2());
+        int n = probe.size();
+        if (first.length < n) {
+            first = new int[n];
+        }
+        if (current >= 0) {
+            intTable.probe(keys, n, first);
+            return;
         }
+        for (int i = 0; i < n; i++) {
+            Partition p = partitions[partition(keys[i])];
+            first[i] = p.build != null ? SPILLED : p.ints.find(keys[i]);
+        }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Load the next chunk of spilled child1 tuples that fits in the memory
+     * budget into the table, and start reading the partition's spilled
+     * child2 tuples again; a partition that fits takes one chunk.
+     *
+     * @return false if every spilled partition is joined
+     */
+    private boolean nextChunk() throws DbException {
+        if (current < 0) {
+            // child2 is done, and so are the partitions in memory
+            for (Partition p : partitions) {
+                p.table = null;
+                p.ints = null;
+            }
+        } else if (pending != null) {
+            loadChunk(partitions[current]);
+            partitions[current].probe.rewind();
+            return true;
+        } else {
+            partitions[current].build.delete();
+            partitions[current].probe.delete();
+        }
+        while (++current < PARTITIONS) {
+            Partition p = partitions[current];
+            if (p.build == null) {
+                continue;
+            }
+            if (p.build.size() == 0 || p.probe.size() == 0) {
+                p.build.delete();
+                p.probe.delete();
+                continue;
+            }
+            p.build.rewind();
+            loadChunk(p);
+            p.probe.rewind();
+            return true;
         }
+        table = null;
+        intTable = null;
+        return false;
+    }
 
-        return null;
+    private void loadChunk(Partition p) throws DbException {
+        long cost = tupleCost();
+        if (intKeys) {
+            intTable = new IntHashTable((int) Math.min(p.build.size(), memoryBudget / cost + 1));
+        } else {
+            table = new HashMap<>();
+        }
+        long used = 0;
+        Tuple t;
+        while ((t = pending != null ? pending : p.build.read()) != null) {
+            pending = null;
+            if (used > 0 && used + cost > memoryBudget) {
+                pending = t;
+                return;
+            }
+            if (intKeys) {
+                intTable.add(t.getInt(pred.getField1()), t);
+            } else {
+                table.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+            }
+            used += cost;
+        }
     }
 
     @Override
@@ -0,0 +1,128 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable is the build table of a join on an int column: an open
+ * addressing table from key to the first of its rows, with the rows in a
+ * flat array and the rows of each key chained through an int array, so no
+ * key is boxed and no list is allocated per key. Rows are numbered from 0
+ * in the order they are added; -1 ends a chain.
+ * <p>
+ * Lookups, including the bulk {@link #probe}, allocate nothing.
+ */
+class IntHashTable {
+
+    private static final int EMPTY = -1;
+
+    // slot -> key, and the last row added with it or EMPTY
+    private int[] keys;
+    private int[] heads;
+    private int mask;
+    private int distinct = 0;
+
+    // row -> tuple, and the row added before it with the same key
+    private Tuple[] rows;
+    private int[] next;
+    private int size = 0;
+
+    /**
+     * @param expected the number of rows expected; the table grows past it
+     */
+    IntHashTable(int expected) {
+        int slots = Integer.highestOneBit(Math.max(16, expected) * 2 - 1) * 2;
+        keys = new int[slots];
+        heads = new int[slots];
+        Arrays.fill(heads, EMPTY);
+        mask = slots - 1;
+        rows = new Tuple[Math.max(16, expected)];
+        next = new int[rows.length];
+    }
+
+    /** @return the number of rows */
+    int size() {
+        return size;
+    }
+
+    /** @return the tuple of row */
+    Tuple get(int row) {
+        return rows[row];
+    }
+
+    /** @return the next row with the key of row, or -1 */
+    int next(int row) {
+        return next[row];
+    }
+
+    /** Add t as a row with key. */
+    void add(int key, Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        int slot = slot(key);
+        if (heads[slot] == EMPTY) {
+            keys[slot] = key;
+            distinct++;
+        }
+        rows[size] = t;
+        next[size] = heads[slot];
+        heads[slot] = size++;
+        if (distinct * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /** @return the first row with key, or -1 */
+    int find(int key) {
+        return heads[slot(key)];
+    }
+
+    /**
+     * Look up the first n keys at once.
+     *
+     * @param first receives the first row with keys[i], or -1, at index i
+     */
+    void probe(int[] keys, int n, int[] first) {
+        for (int i = 0; i < n; i++) {
+            first[i] = heads[slot(keys[i])];
+        }
+    }
+
+    /** @return the slot of key, or the empty slot it would go in */
+    private int slot(int key) {
+        int slot = hash(key) & mask;
+        while (heads[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int h) {
+        // murmur3's finalizer: the join partitions keys by their top bits,
+        // so the low bits must depend on all of them
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new int[oldKeys.length * 2];
+        heads = new int[oldKeys.length * 2];
+        Arrays.fill(heads, EMPTY);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+}
@@ -75,6 +75,59 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    /**
+     * Merge every row of a batch into the aggregate, reading the aggregate
+     * field from its int column; without grouping, the column is folded in
+     * a plain loop.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+        int[] column = batch.intColumn(afield);
+        if (hasGroup()) {
+            for (int row = 0; row < size; row++) {
+                counter++;
+                String key = gbfieldtype == Type.INT_TYPE
+                        ? Integer.toString(batch.getInt(gbfield, row)) : batch.getString(gbfield, row);
+                values.put(key, operate(values.get(key), column[row]));
+                if (what == Op.AVG) {
+                    counters.put(key, counters.getOrDefault(key, 0) + 1);
+                }
+            }
+            return;
+        }
+        int v = preV == null ? (what == Op.COUNT ? 0 : column[0]) : preV;
+        int from = preV == null && what != Op.COUNT ? 1 : 0;
+        switch (what) {
+            case MAX:
+                for (int row = from; row < size; row++) {
+                    v = Math.max(v, column[row]);
+                }
+                break;
+            case MIN:
+                for (int row = from; row < size; row++) {
+                    v = Math.min(v, column[row]);
+                }
+                break;
+            case SUM:
+            case AVG:
+                for (int row = from; row < size; row++) {
+                    v += column[row];
+                }
+                break;
+            case COUNT:
+                v += size;
+                break;
+            default:
+                throw new UnsupportedOperationException("not support " + what);
+        }
+        counter += size;
+        preV = v;
+    }
+
     private Integer operate(Integer pre, Integer cur) {
         switch (what) {
             case MAX:
@@ -6,11 +6,19 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested loops join: it reads as many child1 tuples as fit
+ * in its memory budget into a block, then compares each child2 tuple with
+ * every tuple of the block, so child2 is read once per block instead of
+ * once per child1 tuple. It joins on any predicate, and is used for those
+ * HashEquiJoin and SortMergeJoin do not support.
  */
 public class Join extends Operator {
 
@@ -19,7 +27,20 @@ public class Join extends Operator {
     private OpIterator child1;
     private OpIterator child2;
     private final TupleDesc combDesc;
-    private Tuple currentT1;
+
+    /** the memory budget of a join unless setMemoryBudget() changes it */
+    public static final long DEFAULT_MEMORY_BUDGET = 4L << 20;
+    /** an estimate of the bytes a child1 tuple takes in a block besides its fields */
+    private static final int TUPLE_OVERHEAD = 64;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    // the block of child1 tuples and their join fields, the child2 tuple
+    // being compared with them, and the index of the next one to compare
+    transient private List<Tuple> block;
+    transient private List<Field> keys;
+    transient private Tuple currentT2;
+    transient private int blockIdx;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -65,6 +86,28 @@ public class Join extends Operator {
         return child2.getTupleDesc().getFieldName(p.getField1());
     }
 
+    /**
+     * Set how many bytes of child1 tuples a block may hold; see
+     * {@link #blockSize}.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = Math.max(1, bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param tupleSize the size of an outer tuple's fields, see
+     *            {@link TupleDesc#getSize}
+     * @param memoryBudget the bytes a block may hold
+     * @return the number of outer tuples in a block, at least 1
+     */
+    public static int blockSize(int tupleSize, long memoryBudget) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / (tupleSize + TUPLE_OVERHEAD)));
+    }
+
     /**
      * @see TupleDesc#merge(TupleDesc, TupleDesc) for possible
      *      implementation logic.
@@ -80,7 +123,9 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
-        currentT1 = null;
+        block = new ArrayList<>();
+        keys = new ArrayList<>();
+        currentT2 = null;
     }
 
     public void close() {
@@ -88,13 +133,17 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
-        currentT1 = null;
+        block = null;
+        keys = null;
+        currentT2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
-        currentT1 = null;
+        block.clear();
+        keys.clear();
+        currentT2 = null;
         // some code goes here
     }
 
@@ -117,35 +166,55 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-
-        while (currentT1 != null || child1.hasNext()) {
-            if (currentT1 == null) {
-                currentT1 = child1.next();
-            }
-            Field f1 = currentT1.getField(p.getField1());
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
-                Field f2 = t2.getField(p.getField2());
-                if (f1.compare(p.getOperator(), f2)) {
-                    Tuple result = new Tuple(combDesc);
-                    int i = 0;
-                    Iterator<Field> it1 = currentT1.fields();
-                    while (it1.hasNext()) {
-                        result.setField(i++, it1.next());
+        while (true) {
+            if (currentT2 != null) {
+                Field f2 = currentT2.getField(p.getField2());
+                while (blockIdx < block.size()) {
+                    int i = blockIdx++;
+                    if (keys.get(i).compare(p.getOperator(), f2)) {
+                        return merge(block.get(i), currentT2);
                     }
-                    Iterator<Field> it2 = t2.fields();
-                    while (it2.hasNext()) {
-                        result.setField(i++, it2.next());
-                    }
-                    return result;
                 }
+                currentT2 = null;
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                currentT2 = child2.next();
+                blockIdx = 0;
+                continue;
+            }
+            // the block is done with child2: read the next one, and child2
+            // again unless this is the first
+            boolean first = block.isEmpty();
+            block.clear();
+            keys.clear();
+            int size = blockSize(child1.getTupleDesc().getSize(), memoryBudget);
+            while (block.size() < size && child1.hasNext()) {
+                Tuple t1 = child1.next();
+                block.add(t1);
+                keys.add(t1.getField(p.getField1()));
+            }
+            if (block.isEmpty()) {
+                return null;
+            }
+            if (!first) {
+                child2.rewind();
             }
-            //no child2,find next
-            child2.rewind();
-            currentT1 = null;
         }
         // some code goes here
-        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple result = new Tuple(combDesc);
+        int i = 0;
+        Iterator<Field> it1 = t1.fields();
+        while (it1.hasNext()) {
+            result.setField(i++, it1.next());
+        }
+        Iterator<Field> it2 = t2.fields();
+        while (it2.hasNext()) {
+            result.setField(i++, it2.next());
+        }
+        return result;
     }
 
     @Override
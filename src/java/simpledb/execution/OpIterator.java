@@ -39,6 +39,27 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as one batch of column
+   * vectors. Calls may be mixed with calls to next(); each tuple is
+   * returned once, by either. This default implementation is the adapter
+   * for operators that work a tuple at a time: it fills the batch from
+   * hasNext() and next(). Operators that can process whole batches
+   * override it.
+   *
+   * @param maxSize the largest number of tuples to return
+   * @return a batch of at least one and at most maxSize tuples, or null if
+   *         there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch(int maxSize) throws DbException, TransactionAbortedException {
+    TupleBatch batch = new TupleBatch(getTupleDesc(), maxSize);
+    while (!batch.isFull() && hasNext()) {
+      batch.add(next());
+    }
+    return batch.isEmpty() ? null : batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
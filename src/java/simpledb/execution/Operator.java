@@ -9,8 +9,10 @@ import java.util.NoSuchElementException;
 
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
- * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>next</code>, <code>hasNext</code> and <code>nextBatch</code>.
+ * Subclasses only need to implement <code>open</code> and
+ * <code>readNext</code>, and may implement <code>fetchNextBatch</code> to
+ * process a batch at a time.
  */
 public abstract class Operator implements OpIterator {
 
@@ -38,6 +40,39 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    public TupleBatch nextBatch(int maxSize) throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        TupleBatch batch = new TupleBatch(getTupleDesc(), maxSize);
+        if (next != null) {
+            batch.add(next);
+            next = null;
+        }
+        fetchNextBatch(batch);
+        return batch.isEmpty() ? null : batch;
+    }
+
+    /**
+     * Appends the next Tuples of the iterator to batch, until it is full or
+     * the iteration is finished. Operator uses this method to implement
+     * <code>nextBatch</code>; this implementation calls
+     * <code>fetchNext</code>, and operators that process whole batches
+     * override it.
+     *
+     * @param batch
+     *            the batch to fill, which may already hold tuples
+     */
+    protected void fetchNextBatch(TupleBatch batch) throws DbException,
+            TransactionAbortedException {
+        while (!batch.isFull()) {
+            Tuple t = fetchNext();
+            if (t == null)
+                return;
+            batch.add(t);
+        }
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
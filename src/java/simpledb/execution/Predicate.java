@@ -1,6 +1,8 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -112,6 +114,73 @@ public class Predicate implements Serializable {
         return real.compare(op, operand);
     }
 
+    /**
+     * Compares the field of every row of batch to the operand, as filter()
+     * does for a tuple, and writes the indexes of the rows for which the
+     * comparison is true to rows, in order. Int fields are compared
+     * straight from the batch's column vector.
+     *
+     * @param batch
+     *            The rows to compare against
+     * @param rows
+     *            Receives the indexes of the matching rows; at least
+     *            batch.size() long
+     * @return the number of matching rows
+     */
+    public int filter(TupleBatch batch, int[] rows) {
+        int size = batch.size();
+        int n = 0;
+        if (operand instanceof IntField && batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int[] values = batch.intColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] == v ? 1 : 0;
+                }
+                return n;
+            case NOT_EQUALS:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] != v ? 1 : 0;
+                }
+                return n;
+            case GREATER_THAN:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] > v ? 1 : 0;
+                }
+                return n;
+            case GREATER_THAN_OR_EQ:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] >= v ? 1 : 0;
+                }
+                return n;
+            case LESS_THAN:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] < v ? 1 : 0;
+                }
+                return n;
+            case LESS_THAN_OR_EQ:
+                for (int r = 0; r < size; r++) {
+                    rows[n] = r;
+                    n += values[r] <= v ? 1 : 0;
+                }
+                return n;
+            }
+        }
+        for (int r = 0; r < size; r++) {
+            if (batch.getField(field, r).compare(op, operand)) {
+                rows[n++] = r;
+            }
+        }
+        return n;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -17,6 +17,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private transient int[] columns;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -81,6 +82,29 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Reads a batch from the child
+     * operator that fits in batch, and copies the projected columns over
+     * whole.
+     */
+    @Override
+    protected void fetchNextBatch(TupleBatch batch) throws TransactionAbortedException,
+            DbException {
+        if (columns == null) {
+            columns = new int[outFieldIds.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = outFieldIds.get(i);
+            }
+        }
+        while (!batch.isFull()) {
+            TupleBatch in = child.nextBatch(batch.remaining());
+            if (in == null) {
+                return;
+            }
+            batch.addColumns(in, columns);
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -114,10 +114,12 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        TupleBatch batch;
+        while ((batch = op.nextBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+            for (int row = 0; row < batch.size(); row++) {
+                System.out.println(batch.getTuple(row));
+            }
+            cnt += batch.size();
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
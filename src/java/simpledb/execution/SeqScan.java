@@ -131,6 +131,22 @@ public class SeqScan implements OpIterator {
         return it.next();
     }
 
+    /**
+     * Reads the tuples straight into the batch's column vectors; int fields
+     * are read from the page bytes without decoding a Field.
+     */
+    @Override
+    public TupleBatch nextBatch(int maxSize) throws TransactionAbortedException, DbException {
+        if (it == null) {
+            throw new IllegalStateException("SeqScan not yet open");
+        }
+        TupleBatch batch = new TupleBatch(tupleDesc, maxSize);
+        while (!batch.isFull() && it.hasNext()) {
+            batch.add(it.next());
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
     public void close() {
         if (it != null) {
             it.close();
@@ -0,0 +1,241 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two children that both return their tuples in
+ * ascending order of the join fields, such as scans of BTreeFiles keyed on
+ * them or OrderBys, without building any table.
+ * <p>
+ * An equality join merges the two inputs in one pass of each, holding only
+ * the child2 tuples of the current key. A range join also reads each input
+ * once: with &gt; or &gt;=, the child2 tuples a child1 tuple matches are a
+ * prefix of child2, and with &lt; or &lt;=, the child1 tuples a child2
+ * tuple matches are a prefix of child1. The prefix only grows as the outer
+ * input ascends, so the join keeps the inner tuples matched so far and
+ * extends them for each outer tuple instead of rewinding the inner input.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // an equality join: the child2 tuples with the key of the current
+    // child1 tuple, the next one to join, and the first child2 tuple after
+    // them. A range join: the prefix of the inner input the current outer
+    // tuple matches, the next one to join, and the first inner tuple after
+    // it
+    transient private Tuple current;
+    transient private List<Tuple> group;
+    transient private Field groupKey;
+    transient private int groupIdx;
+    transient private Tuple lookahead;
+
+    /**
+     * @return true if op is a predicate SortMergeJoin can join on
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; see
+     *            {@link #supports}
+     * @param child1
+     *            Iterator for the left relation, in ascending order of
+     *            p.getField1()
+     * @param child2
+     *            Iterator for the right relation, in ascending order of
+     *            p.getField2()
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the field of getTupleDesc() the output is in ascending order
+     *         of: the outer input's join field
+     */
+    public int getSortField() {
+        return leftOuter() ? pred.getField1()
+                : child1.getTupleDesc().numFields() + pred.getField2();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** @return whether child1 is the outer input of a range join */
+    private boolean leftOuter() {
+        Predicate.Op op = pred.getOperator();
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    private void reset() {
+        current = null;
+        group = new ArrayList<>();
+        groupKey = null;
+        groupIdx = 0;
+        lookahead = null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        current = null;
+        group = null;
+        lookahead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a child1 and a child2 tuple that
+     * satisfy the join predicate.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return pred.getOperator() == Predicate.Op.EQUALS ? nextEqual() : nextInRange();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null && groupIdx < group.size()) {
+                return merge(current, group.get(groupIdx++));
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            current = child1.next();
+            Field key = current.getField(pred.getField1());
+            groupIdx = 0;
+            if (groupKey != null && groupKey.equals(key)) {
+                continue; // a duplicate child1 key joins the same group
+            }
+            group.clear();
+            groupKey = key;
+            while (lookahead != null || child2.hasNext()) {
+                if (lookahead == null) {
+                    lookahead = child2.next();
+                }
+                Field f2 = lookahead.getField(pred.getField2());
+                if (f2.compare(Predicate.Op.GREATER_THAN, key)) {
+                    break;
+                }
+                if (f2.equals(key)) {
+                    group.add(lookahead);
+                }
+                lookahead = null;
+            }
+            if (group.isEmpty() && lookahead == null) {
+                return null; // child2 is done
+            }
+        }
+    }
+
+    private Tuple nextInRange() throws TransactionAbortedException, DbException {
+        boolean left = leftOuter();
+        OpIterator outer = left ? child1 : child2;
+        OpIterator inner = left ? child2 : child1;
+        while (true) {
+            if (current != null && groupIdx < group.size()) {
+                Tuple t = group.get(groupIdx++);
+                return left ? merge(current, t) : merge(t, current);
+            }
+            if (!outer.hasNext()) {
+                return null;
+            }
+            current = outer.next();
+            groupIdx = 0;
+            // every inner tuple the previous outer tuple matched still
+            // matches; extend the prefix up to the first one that does not
+            while (lookahead != null || inner.hasNext()) {
+                if (lookahead == null) {
+                    lookahead = inner.next();
+                }
+                if (!(left ? pred.filter(current, lookahead) : pred.filter(lookahead, current))) {
+                    break;
+                }
+                group.add(lookahead);
+                lookahead = null;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * SpillFile is a temporary file that an operator writes tuples of one
+ * TupleDesc to when they do not fit in its memory budget, and reads back
+ * a batch at a time, as often as needed. Fields are written in their page
+ * format (see Field.serialize). The file is deleted by {@link #delete}, or
+ * when the JVM exits.
+ */
+class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private final byte[] string = new byte[Type.STRING_LEN];
+    private long tuples = 0;
+    private long read = 0;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of tuples written */
+    long size() {
+        return tuples;
+    }
+
+    void write(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        tuples++;
+    }
+
+    /** Write row of batch, which must have this file's TupleDesc. */
+    void write(TupleBatch batch, int row) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(batch.getInt(i, row));
+                } else {
+                    new StringField(batch.getString(i, row), Type.STRING_LEN).serialize(out);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        tuples++;
+    }
+
+    /** Start reading the tuples from the first; ends writing. */
+    void rewind() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+            }
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            read = 0;
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the next tuple, or null after the last one
+     */
+    Tuple read() throws DbException {
+        if (in == null) {
+            rewind();
+        }
+        if (read == tuples) {
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    int len = in.readInt();
+                    in.readFully(string);
+                    t.setField(i, new StringField(new String(string, 0, len), Type.STRING_LEN));
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e.getMessage());
+        }
+        read++;
+        return t;
+    }
+
+    /**
+     * @return a batch of up to maxSize of the next tuples, or null after
+     *         the last one
+     */
+    TupleBatch readBatch(int maxSize) throws DbException {
+        TupleBatch batch = new TupleBatch(td, maxSize);
+        Tuple t;
+        while (!batch.isFull() && (t = read()) != null) {
+            batch.add(t);
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    void delete() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        out = null;
+        in = null;
+        file.delete();
+    }
+}
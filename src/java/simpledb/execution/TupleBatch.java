@@ -0,0 +1,204 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one TupleDesc in column
+ * vectors: an int array for each int column, a String array for each
+ * string column, and the RecordId of each row. Operators that process
+ * batches ({@link OpIterator#nextBatch}) loop over these arrays instead of
+ * moving one Tuple at a time through hasNext() and next().
+ * <p>
+ * A batch is filled by appending rows, and read by row index below
+ * {@link #size()}; the column arrays may be longer than the batch.
+ */
+public class TupleBatch {
+
+    /** the batch size operators use when they pull batches from a child */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final String[][] strings;
+    private final RecordId[] recordIds;
+    private int size = 0;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows
+     * @param capacity the largest number of rows the batch holds
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("batch capacity must be positive: " + capacity);
+        }
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+        recordIds = new RecordId[capacity];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the batch */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows that can still be added */
+    public int remaining() {
+        return capacity - size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Remove every row. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return the values of int column col; only the first size() are rows */
+    public int[] intColumn(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of string column col; only the first size() are rows */
+    public String[] stringColumn(int col) {
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    /** @return the value of column col of row as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null) {
+            return new IntField(ints[col][row]);
+        }
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /** @return row as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++) {
+            t.setField(i, getField(i, row));
+        }
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /** Append t, which must have this batch's field types, as a row. */
+    public void add(Tuple t) {
+        checkSpace(1);
+        int row = size++;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][row] = t.getInt(i);
+            } else {
+                strings[i][row] = ((StringField) t.getField(i)).getValue();
+            }
+        }
+        recordIds[row] = t.getRecordId();
+    }
+
+    /** Append row of from, which must have this batch's field types. */
+    public void addRow(TupleBatch from, int row) {
+        checkSpace(1);
+        int to = size++;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][to] = from.ints[i][row];
+            } else {
+                strings[i][to] = from.strings[i][row];
+            }
+        }
+        recordIds[to] = from.recordIds[row];
+    }
+
+    /**
+     * Append every row of from, taking column columns[i] of from as column
+     * i of this batch.
+     */
+    public void addColumns(TupleBatch from, int[] columns) {
+        checkSpace(from.size);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                System.arraycopy(from.ints[columns[i]], 0, ints[i], size, from.size);
+            } else {
+                System.arraycopy(from.strings[columns[i]], 0, strings[i], size, from.size);
+            }
+        }
+        System.arraycopy(from.recordIds, 0, recordIds, size, from.size);
+        size += from.size;
+    }
+
+    /**
+     * Append the concatenation of left and row of right, whose fields are
+     * this batch's, left's first; the row has no RecordId.
+     */
+    public void addJoined(Tuple left, TupleBatch right, int row) {
+        checkSpace(1);
+        int to = size++;
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            if (ints[i] != null) {
+                ints[i][to] = left.getInt(i);
+            } else {
+                strings[i][to] = ((StringField) left.getField(i)).getValue();
+            }
+        }
+        for (int i = n; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][to] = right.ints[i - n][row];
+            } else {
+                strings[i][to] = right.strings[i - n][row];
+            }
+        }
+        recordIds[to] = null;
+    }
+
+    private void checkSpace(int rows) {
+        if (rows > capacity - size) {
+            throw new IllegalStateException("batch of " + capacity + " rows is full");
+        }
+    }
+}
@@ -3,6 +3,9 @@ package simpledb.optimizer;
 import simpledb.ParsingException;
 import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
 
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -72,7 +75,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (SortMergeJoin.supports(lj.p) && !(lj instanceof LogicalSubplanJoinNode)
+                && sortField(plan1) == t1id && sortField(plan2) == t2id) {
+            // both inputs already arrive in join key order
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -92,6 +99,31 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Return the field the tuples of a plan arrive in ascending order of, if
+     * it is known: the key of a scan of a BTreeFile, the field of an
+     * ascending OrderBy, the order of the child of a Filter, and the order
+     * of a SortMergeJoin's outer input.
+     *
+     * @return the index of the field in plan's TupleDesc, or -1
+     */
+    static int sortField(OpIterator plan) {
+        if (plan instanceof SeqScan || plan instanceof BTreeScan) {
+            String table = plan instanceof SeqScan ? ((SeqScan) plan).getTableName()
+                    : ((BTreeScan) plan).getTableName();
+            DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+            return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() ? o.getOrderByField() : -1;
+        } else if (plan instanceof Filter) {
+            return sortField(((Filter) plan).getChildren()[0]);
+        } else if (plan instanceof SortMergeJoin) {
+            return ((SortMergeJoin) plan).getSortField();
+        }
+        return -1;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -130,8 +162,54 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic
 
             // nested-loops join.
-            // costA + totalTupleOfA * costB 
-            return cost1 + card1 * cost2 + card1 * card2;
+            if (SortMergeJoin.supports(j.p) && keyedOn(j.t1Alias, j.f1PureName)
+                    && keyedOn(j.t2Alias, j.f2PureName)) {
+                // instantiateJoin merge joins scans of BTreeFiles keyed on
+                // the join fields: one pass of each input, one comparison
+                // per tuple read
+                return cost1 + cost2 + card1 + card2;
+            }
+            // costA + blocksOfA * costB + one predicate per pair: Join
+            // scans B once per block of A
+            int blockSize = Join.blockSize(outerTupleSize(j), Join.DEFAULT_MEMORY_BUDGET);
+            return cost1 + Math.ceil((double) card1 / blockSize) * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * @return the size of a tuple of the outer table of j, or 0 if the
+     *         table is unknown
+     */
+    private int outerTupleSize(LogicalJoinNode j) {
+        Integer id = p.getTableId(j.t1Alias);
+        try {
+            if (id == null) {
+                id = Database.getCatalog().getTableId(j.t1Alias);
+            }
+            return Database.getCatalog().getTupleDesc(id).getSize();
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return whether the table of alias is a BTreeFile keyed on field, so
+     *         its scans arrive in order of field
+     */
+    private boolean keyedOn(String alias, String field) {
+        if (alias == null) {
+            return false;
+        }
+        Integer id = p.getTableId(alias);
+        try {
+            if (id == null) {
+                id = Database.getCatalog().getTableId(alias);
+            }
+            DbFile f = Database.getCatalog().getDatabaseFile(id);
+            return f instanceof BTreeFile
+                    && f.getTupleDesc().fieldNameToIndex(field) == ((BTreeFile) f).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
         }
     }
 
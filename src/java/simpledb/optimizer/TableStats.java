@@ -100,7 +100,8 @@ public class TableStats {
     private void init() {
         DbFile file = this.dbFile;
         int colums = file.getTupleDesc().numFields();
-        DbFileIterator it = file.iterator(new TransactionId());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
 
         Stat[] stats = new Stat[colums];
         try {
@@ -133,6 +134,9 @@ public class TableStats {
         } catch (DbException | TransactionAbortedException e) {
             e.printStackTrace();
             System.exit(0);
+        } finally {
+            // release the shared locks of the scan
+            Database.getBufferPool().transactionComplete(tid);
         }
     }
 
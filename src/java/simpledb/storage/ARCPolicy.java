@@ -0,0 +1,103 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * ARC (Megiddo and Modha) splits cached pages into T1, pages seen once
+ * recently, and T2, pages seen at least twice. Ghost lists B1 and B2
+ * remember the ids of pages recently evicted from each. A miss that hits a
+ * ghost list shifts the target size p of T1 towards the list that would have
+ * kept the page, so the policy adapts between recency and frequency, and a
+ * scan can only flush T1.
+ * <p>
+ * In the paper the victim choice also looks at the page being loaded; here
+ * the BufferPool evicts before it knows the ghost status of the page it is
+ * about to load, so only the |T1| &gt; p test is used.
+ */
+class ARCPolicy implements ReplacementPolicy {
+
+    private final int c;
+    /** target size of T1 */
+    private int p = 0;
+
+    // all lists are in LRU order, least recently used first
+    private final LinkedHashSet<PageId> t1 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> t2 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<>();
+
+    /**
+     * @param capacity pages the policy is expected to track
+     */
+    ARCPolicy(int capacity) {
+        this.c = Math.max(1, capacity);
+    }
+
+    @Override
+    public void pageLoaded(PageId pid) {
+        if (b1.contains(pid)) {
+            p = Math.min(c, p + Math.max(1, b2.size() / b1.size()));
+            b1.remove(pid);
+            t2.add(pid);
+        } else if (b2.contains(pid)) {
+            p = Math.max(0, p - Math.max(1, b1.size() / b2.size()));
+            b2.remove(pid);
+            t2.add(pid);
+        } else {
+            t1.add(pid);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid)) {
+            t2.add(pid);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        if (!t1.remove(pid)) {
+            t2.remove(pid);
+        }
+    }
+
+    @Override
+    public PageId evict(Predicate<PageId> evictable) {
+        boolean fromT1 = !t1.isEmpty() && (t1.size() > p || t2.isEmpty());
+        PageId victim = fromT1 ? evictFrom(t1, b1, evictable) : evictFrom(t2, b2, evictable);
+        if (victim == null) {
+            victim = fromT1 ? evictFrom(t2, b2, evictable) : evictFrom(t1, b1, evictable);
+        }
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> list, LinkedHashSet<PageId> ghosts,
+                             Predicate<PageId> evictable) {
+        PageId victim = TwoQueuePolicy.removeFirst(list, evictable);
+        if (victim != null) {
+            ghosts.add(victim);
+            trimGhosts();
+        }
+        return victim;
+    }
+
+    /** Keep |T1| + |B1| and the size of the whole directory within bounds. */
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > c && !b1.isEmpty()) {
+            removeOldest(b1);
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * c && !b2.isEmpty()) {
+            removeOldest(b2);
+        }
+    }
+
+    private static void removeOldest(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+}
@@ -2,13 +2,23 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
-import simpledb.common.LRUMap;
 import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,7 +27,40 @@ import java.util.List;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Page locks are held until the transaction
+ * completes, under intention locks on their tables; a transaction that locks
+ * many pages of one table has them escalated to a table lock. See
+ * {@link LockManager}.
+ * <p>
+ * Read-only transactions may instead run as {@link #beginSnapshot
+ * snapshots}: they take no locks and read every page as it was committed when
+ * they started, from before images kept in a {@link VersionStore} while
+ * writers commit.
+ * <p>
+ * Cached pages are partitioned into shards by PageId. Each shard has its own
+ * monitor and its own {@link ReplacementPolicy}, so page lookups from many
+ * threads only contend when they hit the same shard. The capacity of the
+ * pool is global: a miss may evict a page from any shard, and never holds
+ * more than one shard monitor at a time.
+ * <p>
+ * Scans can ask the pool to {@link #prefetch} the pages they are about to
+ * read (see {@link ReadAhead}). Prefetched pages are read on background
+ * threads into free frames of the pool, and staged there until a getPage
+ * miss claims them; eviction drops them when it finds nothing else.
+ * <p>
+ * The pool follows NO-STEAL: a page dirtied by a transaction that has not
+ * finished is never written out, except by flushAllPages and flushPages,
+ * which log the update first. By default commit is FORCE: the pages a
+ * transaction dirtied are written before transactionComplete returns. When
+ * the optional {@link #startPageCleaner page cleaner} runs, commit only logs
+ * the after images and forces the log, and leaves the pages dirty for the
+ * cleaner, which writes them back sorted and coalesced into runs of adjacent
+ * pages.
+ * <p>
+ * A caller that needs a page to stay cached while it works on it can pin
+ * it with {@link #getPinnedPage}; pinned pages are never evicted, and the
+ * pool reports how many frames are pinned so its size can be chosen from
+ * the number of pages queries actually hold at once.
  *
  * @Threadsafe, all fields are final
  */
@@ -28,7 +71,18 @@ public class BufferPool {
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
-    private final LRUMap<PageId, Page> pageCache;
+
+    /** Upper bound on the number of shards */
+    private static final int MAX_SHARDS = 64;
+    /** Pools are only split while every shard keeps at least this many pages */
+    private static final int MIN_PAGES_PER_SHARD = 16;
+    /** Pages in the private ring of a large sequential scan */
+    private static final int SCAN_RING_PAGES = 16;
+
+    /** Default number of pages a sequential scan reads ahead */
+    public static final int DEFAULT_PREFETCH_DEPTH = 8;
+    /** Page locks a transaction may hold on one table before they are escalated */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 1000;
 
 
     /**
@@ -38,16 +92,204 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private int totalPages;
+    private final int totalPages;
+    private final ReplacementPolicy.Type policyType;
+    private final Shard[] shards;
+    /** Pages cached in all shards, plus frames reserved by in-flight loads */
+    private final AtomicInteger resident = new AtomicInteger();
+    /** Shard the next eviction starts looking in */
+    private final AtomicInteger evictionHand = new AtomicInteger();
+    private final Prefetcher prefetcher;
+    private final LockManager locks = new LockManager(DEFAULT_LOCK_ESCALATION_THRESHOLD);
+    private final VersionStore versions = new VersionStore();
+    /** the start timestamp of every open snapshot transaction */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private volatile int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Finished transactions that still have dirty pages in the pool. Their
+     * updates are in the log, so those pages may be written at any time.
+     */
+    private final Set<TransactionId> finished = ConcurrentHashMap.newKeySet();
+    /**
+     * Pages of unfinished transactions that flushAllPages or flushPages
+     * wrote out. They are clean now, but their before images must still be
+     * reset when the transaction commits.
+     */
+    private final Map<TransactionId, Set<PageId>> stolen = new ConcurrentHashMap<>();
+    private volatile PageCleaner cleaner;
+    private final AtomicLong dirtyEvictions = new AtomicLong();
+    private final AtomicLong cleanedPages = new AtomicLong();
+    private final AtomicLong cleanerWrites = new AtomicLong();
+    private final AtomicLong cleanerFailures = new AtomicLong();
+
+    private final AtomicInteger pinnedPages = new AtomicInteger();
+    private final AtomicInteger peakPinnedPages = new AtomicInteger();
+    private final AtomicLong pinnedEvictionSkips = new AtomicLong();
+
+    /**
+     * One partition of the pool, guarded by its own monitor.
+     */
+    private static class Shard {
+        final Map<PageId, Page> pages = new HashMap<>();
+        /** pin count of every pinned page of this shard */
+        final Map<PageId, Integer> pins = new HashMap<>();
+        /**
+         * the pages being read by cachedPage, or written by evictPage,
+         * which others wait for
+         */
+        final Map<PageId, CompletableFuture<Page>> loading = new HashMap<>();
+        final ReplacementPolicy policy;
+
+        Shard(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.Type.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the replacement policy used to pick pages to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policyType) {
         this.totalPages = numPages;
-        this.pageCache = new LRUMap<>(numPages);
+        this.policyType = policyType;
+        this.prefetcher = new Prefetcher(numPages / 4, resident, numPages);
+        this.shards = new Shard[shardCount(numPages)];
+        int perShard = (numPages + shards.length - 1) / shards.length;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(policyType.create(perShard));
+        }
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return totalPages;
+    }
+
+    /**
+     * @return the number of pages a sequential scan should read ahead. This
+     *         is capped to a quarter of the pool, so small pools never
+     *         prefetch, and to the prefetcher's window.
+     */
+    public int getPrefetchDepth() {
+        return Math.min(Math.min(prefetchDepth, Prefetcher.WINDOW), totalPages / 4);
+    }
+
+    /**
+     * Set the number of pages sequential scans read ahead; 0 disables
+     * prefetching.
+     */
+    public void setPrefetchDepth(int depth) {
+        this.prefetchDepth = Math.max(0, depth);
+    }
+
+    /** @return the number of pages read ahead in the background */
+    public long getPrefetchesIssued() {
+        return prefetcher.getIssued();
+    }
+
+    /** @return the number of misses served by a page that was read ahead */
+    public long getPrefetchHits() {
+        return prefetcher.getHits();
+    }
+
+    /**
+     * @return the number of pages read ahead that were dropped before
+     *         anyone asked for them, or invalidated, or failed to read
+     */
+    public long getPrefetchesWasted() {
+        return prefetcher.getWasted();
+    }
+
+    /**
+     * Start the background page cleaner. From now on commits leave the pages
+     * they dirtied for the cleaner instead of writing them.
+     *
+     * @param intervalMillis pause between two cleaning passes
+     */
+    public synchronized void startPageCleaner(long intervalMillis) {
+        if (cleaner == null) {
+            cleaner = new PageCleaner(this, intervalMillis);
+            cleaner.start();
+        }
+    }
+
+    /**
+     * Stop the background page cleaner, if it runs. Pages it has not
+     * written yet stay dirty and are written when evicted or flushed.
+     */
+    public synchronized void stopPageCleaner() {
+        if (cleaner != null) {
+            cleaner.stop();
+            cleaner = null;
+        }
+    }
+
+    /** @return the number of evictions that had to write the victim first */
+    public long getDirtyEvictions() {
+        return dirtyEvictions.get();
+    }
+
+    /** @return the number of pages written back by {@link #cleanPages()} */
+    public long getCleanedPages() {
+        return cleanedPages.get();
+    }
+
+    /**
+     * @return the number of writes cleanPages() issued; lower than
+     *         getCleanedPages() when adjacent pages were coalesced
+     */
+    public long getCleanerWrites() {
+        return cleanerWrites.get();
+    }
+
+    /**
+     * @return the number of background cleaner passes that could not write
+     *         some page; those pages stay dirty
+     */
+    public long getCleanerFailures() {
+        return cleanerFailures.get();
+    }
+
+    /** Count a cleaner pass that failed. Called by the PageCleaner. */
+    void cleanerFailed() {
+        cleanerFailures.incrementAndGet();
+    }
+
+    /** @return the replacement policy this pool was created with */
+    public ReplacementPolicy.Type getReplacementPolicy() {
+        return policyType;
+    }
+
+    /**
+     * @return a power of two number of shards: about two per core, but few
+     *         enough that each shard still holds a useful number of pages
+     */
+    static int shardCount(int numPages) {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2));
+        n = Math.min(n, MAX_SHARDS);
+        while (n > 1 && numPages / n < MIN_PAGES_PER_SHARD) {
+            n >>= 1;
+        }
+        return n;
+    }
+
+    private Shard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
     }
     
     public static int getPageSize() {
@@ -82,17 +324,335 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        Page cache = pageCache.get(pid);
-        if (cache != null) {
-            return cache;
-        }
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = dbFile.readPage(pid);
-        //cache
-        pageCache.put(pid, page);
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            return snapshotPage(snapshot, pid, perm, cachedPage(pid));
+        }
+        locks.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        return cachedPage(pid);
+    }
+
+    /**
+     * @return the cached page pid, which is read and cached first if needed.
+     *         The page is read without holding the shard's monitor: the
+     *         reader leaves a placeholder in the shard, which other threads
+     *         asking for the page wait on.
+     */
+    private Page cachedPage(PageId pid) throws DbException {
+        Shard shard = shardOf(pid);
+        while (true) {
+            CompletableFuture<Page> load;
+            synchronized (shard) {
+                Page cache = shard.pages.get(pid);
+                if (cache != null) {
+                    shard.policy.pageAccessed(pid);
+                    return cache;
+                }
+                load = shard.loading.get(pid);
+            }
+            if (load != null) {
+                // being read by another thread; null if that read failed or
+                // the page was discarded meanwhile, so look again
+                Page page = load.join();
+                if (page != null) {
+                    return page;
+                }
+                continue;
+            }
+            reserveFrame();
+            load = new CompletableFuture<>();
+            synchronized (shard) {
+                if (shard.pages.containsKey(pid) || shard.loading.containsKey(pid)) {
+                    // cached or being read by another thread meanwhile
+                    resident.decrementAndGet();
+                    continue;
+                }
+                shard.loading.put(pid, load);
+            }
+            Page page = null;
+            try {
+                page = readPage(pid);
+            } finally {
+                synchronized (shard) {
+                    // discardPage drops the placeholder of a page whose
+                    // file changed under the read
+                    if (shard.loading.remove(pid, load) && page != null) {
+                        Page cache = shard.pages.get(pid);
+                        if (cache == null) {
+                            shard.pages.put(pid, page);
+                            shard.policy.pageLoaded(pid);
+                        } else {
+                            // cached by cachePage meanwhile, which wins
+                            resident.decrementAndGet();
+                            shard.policy.pageAccessed(pid);
+                            page = cache;
+                        }
+                    } else {
+                        resident.decrementAndGet();
+                        page = null;
+                    }
+                }
+                load.complete(page);
+            }
+            if (page != null) {
+                return page;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)} and pin it: it will not be evicted until the returned
+     * handle is closed.
+     */
+    public PageHandle getPinnedPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (snapshots.containsKey(tid)) {
+            // a snapshot reads a private copy, which is never evicted
+            return new PageHandle(null, getPage(tid, pid, perm));
+        }
+        Shard shard = shardOf(pid);
+        while (true) {
+            Page page = getPage(tid, pid, perm);
+            synchronized (shard) {
+                // the page may have been evicted or replaced since getPage
+                if (shard.pages.get(pid) == page) {
+                    int pins = shard.pins.merge(pid, 1, Integer::sum);
+                    if (pins == 1) {
+                        int n = pinnedPages.incrementAndGet();
+                        peakPinnedPages.accumulateAndGet(n, Math::max);
+                    }
+                    return new PageHandle(this, page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release one pin on a page. Called by {@link PageHandle#close()}.
+     */
+    void unpinPage(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Integer pins = shard.pins.get(pid);
+            if (pins == null) {
+                // discarded while pinned
+                return;
+            }
+            if (pins == 1) {
+                shard.pins.remove(pid);
+                pinnedPages.decrementAndGet();
+            } else {
+                shard.pins.put(pid, pins - 1);
+            }
+        }
+    }
+
+    /** @return the number of pages currently pinned */
+    public int getPinnedPages() {
+        return pinnedPages.get();
+    }
+
+    /** @return the largest number of pages that were ever pinned at once */
+    public int getPeakPinnedPages() {
+        return peakPinnedPages.get();
+    }
+
+    /** @return how often eviction passed over a page because it was pinned */
+    public long getPinnedEvictionSkips() {
+        return pinnedEvictionSkips.get();
+    }
+
+    /** @return a snapshot of the pin count of every pinned page */
+    public Map<PageId, Integer> getPinCounts() {
+        Map<PageId, Integer> counts = new HashMap<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                counts.putAll(shard.pins);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock; 0 disables escalation.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        locks.setEscalationThreshold(Math.max(0, threshold));
+    }
+
+    public int getLockEscalationThreshold() {
+        return locks.getEscalationThreshold();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getLockEscalations() {
+        return locks.getEscalations();
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    public long getDeadlockAborts() {
+        return locks.getDeadlockAborts();
+    }
+
+    /**
+     * @return how often a blocked lock request checked the wait-for graph
+     *         for a deadlock
+     */
+    public long getDeadlockChecks() {
+        return locks.getDeadlockChecks();
+    }
+
+    /** @return the total time spent on deadlock checks, in nanoseconds */
+    public long getDeadlockCheckNanos() {
+        return locks.getDeadlockCheckNanos();
+    }
+
+    /**
+     * Retrieve the specified page for a sequential scan. Behaves like
+     * {@link #getPage(TransactionId, PageId, Permissions)} if the page is
+     * cached or ring is null; otherwise the page is read into ring and not
+     * cached in the pool.
+     *
+     * @param ring the scan's private ring, see {@link #scanRingFor(int)}
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        if (ring == null) {
+            return getPage(tid, pid, perm);
+        }
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null) {
+            locks.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        }
+        Page page;
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            page = shard.pages.get(pid);
+            if (page != null) {
+                shard.policy.pageAccessed(pid);
+            }
+        }
+        if (page == null) {
+            page = ring.get(pid);
+        }
+        if (page == null) {
+            page = readPage(pid);
+            ring.add(page);
+        }
+        return snapshot == null ? page : snapshotPage(snapshot, pid, perm, page);
+    }
+
+    /**
+     * Start a snapshot transaction: until it completes, tid takes no locks,
+     * may only read, and sees every page as of the last commit before this
+     * call.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, versions.beginSnapshot());
+    }
+
+    /**
+     * @param current the page as cached, possibly changed by a running
+     *                transaction
+     * @return the image of pid that the snapshot taken at ts reads
+     */
+    private Page snapshotPage(long ts, PageId pid, Permissions perm, Page current) throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            throw new DbException("snapshot transactions are read-only");
+        }
+        Page version = versions.versionAsOf(pid, ts);
+        if (version != null) {
+            return version;
+        }
+        Page committed = current.getBeforeImage();
+        // a commit may have replaced the committed image meanwhile, and then
+        // kept the one this snapshot needs
+        version = versions.versionAsOf(pid, ts);
+        return version != null ? version : committed;
+    }
+
+    /** @return the number of page versions kept for open snapshots */
+    public int getSnapshotVersions() {
+        return versions.getVersions();
+    }
+
+    /** @return the number of page versions no snapshot needed any more */
+    public long getCollectedVersions() {
+        return versions.getCollected();
+    }
+
+    /** @return the number of snapshot reads served from a kept version */
+    public long getSnapshotVersionReads() {
+        return versions.getVersionReads();
+    }
+
+    /**
+     * Read a page that is not cached, using the prefetched copy if there is
+     * one.
+     */
+    private Page readPage(PageId pid) {
+        Page page = prefetcher.take(pid);
+        if (page == null) {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        }
         return page;
     }
 
+    /**
+     * Start reading a page in the background so that a later getPage does
+     * not have to wait for it. Does nothing if prefetching is disabled or the
+     * page is already cached, or being read or written.
+     */
+    public void prefetch(PageId pid) {
+        if (getPrefetchDepth() <= 0) {
+            return;
+        }
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid) || shard.loading.containsKey(pid)) {
+                return;
+            }
+        }
+        prefetcher.prefetch(pid);
+    }
+
+    /**
+     * Decide whether a sequential scan should bypass the pool. A scan of a
+     * table larger than the pool gets a ring: caching it could not produce
+     * hits for the scan itself, and would evict every page other queries
+     * need.
+     *
+     * @param tablePages the number of pages the scan will read
+     * @return a new ring for the scan, or null if the table should be cached
+     *         normally
+     */
+    public ScanRing scanRingFor(int tablePages) {
+        if (tablePages <= totalPages) {
+            return null;
+        }
+        return new ScanRing(Math.max(1, Math.min(SCAN_RING_PAGES, totalPages / 4)));
+    }
+
+    /**
+     * Claim room for one more page, evicting pages as needed. Must be called
+     * without holding any shard monitor.
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int n = resident.get();
+            if (n < totalPages) {
+                if (resident.compareAndSet(n, n + 1)) {
+                    return;
+                }
+            } else if (!evictPage()) {
+                // every frame is reserved by a load that has not finished yet
+                Thread.yield();
+            }
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -105,6 +665,7 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        locks.release(tid, pid);
     }
 
     /**
@@ -115,13 +676,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return locks.holdsLock(tid, p);
     }
 
     /**
@@ -134,8 +696,325 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot != null) {
+            versions.endSnapshot(snapshot);
+            return;
+        }
+        List<Page> dirtied = pagesDirtiedBy(tid);
+        Set<PageId> flushed = stolen.remove(tid);
+        if (dirtied.isEmpty() && flushed == null) {
+            locks.releaseAll(tid);
+            return;
+        }
+        boolean force = cleaner == null;
+        try {
+            if (commit) {
+                LogFile log = Database.getLogFile();
+                for (Page p : dirtied) {
+                    log.logWrite(tid, p.getBeforeImage(), p);
+                }
+                log.force();
+                versions.publish(withFlushed(dirtied, flushed), flushed);
+                if (force) {
+                    for (Page p : dirtied) {
+                        writeBack(p, tid);
+                    }
+                }
+            } else {
+                if (flushed != null) {
+                    // the rollback put the committed images back on disk
+                    versions.release(flushed);
+                }
+                // nothing of tid is on disk; in NO-FORCE mode the before
+                // image may hold committed updates the cleaner has not
+                // written yet, so it stays dirty
+                for (Page p : dirtied) {
+                    Page restored = p.getBeforeImage();
+                    if (!force) {
+                        restored.markDirty(true, tid);
+                    }
+                    if (restored instanceof HeapPage) {
+                        // the inserts and deletes undone here told the free
+                        // space map about slots that are not theirs any more
+                        ((HeapPage) restored).updateFreeSpace();
+                    }
+                    Shard shard = shardOf(p.getId());
+                    synchronized (shard) {
+                        if (shard.pages.get(p.getId()) == p) {
+                            shard.pages.put(p.getId(), restored);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (!force) {
+            finished.add(tid);
+        }
+        locks.releaseAll(tid);
+    }
+
+    /**
+     * @return the dirtied pages, plus the cached ones among the flushed
+     *         pages that are clean
+     */
+    private List<Page> withFlushed(List<Page> dirtied, Set<PageId> flushed) {
+        if (flushed == null) {
+            return dirtied;
+        }
+        List<Page> pages = new ArrayList<>(dirtied);
+        for (PageId pid : flushed) {
+            Page p = residentPage(pid);
+            if (p != null && p.isDirty() == null) {
+                pages.add(p);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * @return the cached pages whose last change was made by tid; these are
+     *         among the pages tid has locked, so only those are looked up,
+     *         plus the cached pages of tables tid has locked exclusively
+     */
+    private List<Page> pagesDirtiedBy(TransactionId tid) {
+        List<Page> dirtied = new ArrayList<>();
+        for (PageId pid : locks.lockedPages(tid)) {
+            Shard shard = shardOf(pid);
+            synchronized (shard) {
+                Page p = shard.pages.get(pid);
+                if (p != null && tid.equals(p.isDirty())) {
+                    dirtied.add(p);
+                }
+            }
+        }
+        Set<Integer> tables = locks.exclusiveTables(tid);
+        if (!tables.isEmpty()) {
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    for (Page p : shard.pages.values()) {
+                        if (tid.equals(p.isDirty()) && tables.contains(p.getId().getTableId())) {
+                            dirtied.add(p);
+                        }
+                    }
+                }
+            }
+        }
+        return dirtied;
+    }
+
+    /**
+     * Write a page whose updates are in the log, and mark it clean unless it
+     * was dirtied again meanwhile.
+     */
+    private void writeBack(Page page, TransactionId dirtier) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        file.writePage(page);
+        markClean(page, dirtier);
+    }
+
+    private void markClean(Page page, TransactionId dirtier) {
+        PageId pid = page.getId();
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (dirtier.equals(page.isDirty())) {
+                page.markDirty(false, null);
+            }
+        }
+        prefetcher.invalidate(pid);
+    }
+
+    /**
+     * @return true if the page is not pinned and may be written; called with
+     *         the shard's monitor held
+     */
+    private boolean isEvictable(Shard shard, PageId pid) {
+        if (shard.pins.containsKey(pid)) {
+            pinnedEvictionSkips.incrementAndGet();
+            return false;
+        }
+        return isWritable(shard.pages.get(pid));
+    }
+
+    /**
+     * @return true if the page may be written without breaking NO-STEAL:
+     *         it is clean, or the transaction that dirtied it has finished
+     */
+    private boolean isWritable(Page page) {
+        TransactionId dirtier = page.isDirty();
+        return dirtier == null || finished.contains(dirtier);
+    }
+
+    /** A dirty page as it was when a cleaning pass found it */
+    private static class DirtyImage {
+        final Page page;
+        final TransactionId dirtier;
+        /** what to write for the page, and its data */
+        final Page image;
+        final byte[] data;
+
+        DirtyImage(Page page, TransactionId dirtier) {
+            this(page, dirtier, page);
+        }
+
+        DirtyImage(Page page, TransactionId dirtier, Page image) {
+            this.page = page;
+            this.dirtier = dirtier;
+            this.image = image;
+            this.data = image.getPageData();
+        }
+
+        PageId id() {
+            return page.getId();
+        }
+    }
+
+    /**
+     * Write back the dirty pages of finished transactions, sorted by table
+     * and page number, with one vectored write per run of adjacent pages.
+     * Called by the page cleaner; may also be called directly.
+     *
+     * @return the number of pages written
+     * @throws IOException if some run of pages could not be written; the
+     *         other runs are still written, and the failed pages stay dirty
+     */
+    public int cleanPages() throws IOException {
+        Set<TransactionId> finishedBefore = new HashSet<>(finished);
+        Set<TransactionId> dirtiers = new HashSet<>();
+        List<DirtyImage> images = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page p : shard.pages.values()) {
+                    TransactionId dirtier = p.isDirty();
+                    if (dirtier == null) {
+                        continue;
+                    }
+                    dirtiers.add(dirtier);
+                    if (finished.contains(dirtier) && !shard.pins.containsKey(p.getId())) {
+                        images.add(new DirtyImage(p, dirtier));
+                    }
+                }
+            }
+        }
+        // a transaction that had finished before the scan started, and of
+        // which the scan found no dirty page, can never have one again
+        finishedBefore.removeAll(dirtiers);
+        finished.removeAll(finishedBefore);
+
+        AtomicLong written = new AtomicLong();
+        try {
+            writeImages(images, cleanerWrites, written);
+        } finally {
+            cleanedPages.addAndGet(written.get());
+        }
+        return (int) written.get();
+    }
+
+    /**
+     * @return the ids of the dirty pages in the pool, the dirty page table a
+     *         fuzzy checkpoint records
+     */
+    Set<PageId> dirtyPages() {
+        Set<PageId> dirty = new HashSet<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page p : shard.pages.values()) {
+                    if (p.isDirty() != null) {
+                        dirty.add(p.getId());
+                    }
+                }
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Write the committed image of every page among pids that is still
+     * dirty, for a fuzzy checkpoint. That is the page's before image, which
+     * the commit of the transaction that dirtied it set to its contents; if
+     * an unfinished transaction has dirtied the page since, it keeps the
+     * committed changes that may not be on disk yet without breaking
+     * NO-STEAL. Pages whose dirtier has finished are marked clean.
+     *
+     * @return the number of pages written
+     */
+    int writeCommittedImages(Collection<PageId> pids) throws IOException {
+        List<DirtyImage> images = new ArrayList<>();
+        for (PageId pid : pids) {
+            Shard shard = shardOf(pid);
+            synchronized (shard) {
+                Page p = shard.pages.get(pid);
+                TransactionId dirtier = p == null ? null : p.isDirty();
+                if (dirtier != null) {
+                    images.add(new DirtyImage(p, finished.contains(dirtier) ? dirtier : null,
+                            p.getBeforeImage()));
+                }
+            }
+        }
+        AtomicLong written = new AtomicLong();
+        writeImages(images, new AtomicLong(), written);
+        return (int) written.get();
     }
 
+    /**
+     * Write images sorted by table and page number, with one vectored write
+     * per run of adjacent pages, and mark each page clean unless its image
+     * has no dirtier or it was dirtied again meanwhile. A run that fails
+     * stays dirty; the other runs are still written.
+     *
+     * @param writes counts the writes issued
+     * @param written counts the pages written
+     * @throws IOException the first failure, with any later ones suppressed
+     */
+    private void writeImages(List<DirtyImage> images, AtomicLong writes, AtomicLong written)
+            throws IOException {
+        images.sort(Comparator.<DirtyImage>comparingInt(d -> d.id().getTableId())
+                .thenComparingInt(d -> d.id().getPageNumber()));
+        IOException failure = null;
+        int i = 0;
+        while (i < images.size()) {
+            DirtyImage first = images.get(i);
+            DbFile file = Database.getCatalog().getDatabaseFile(first.id().getTableId());
+            int end = i + 1;
+            try {
+                if (file instanceof PageRunWriter) {
+                    PageRunWriter runs = (PageRunWriter) file;
+                    while (end < images.size() && runs.isNextPage(images.get(end - 1).id(), images.get(end).id())) {
+                        end++;
+                    }
+                    byte[][] data = new byte[end - i][];
+                    for (int j = i; j < end; j++) {
+                        data[j - i] = images.get(j).data;
+                    }
+                    runs.writePages(first.id(), data);
+                } else {
+                    file.writePage(first.image);
+                }
+                writes.incrementAndGet();
+                for (int j = i; j < end; j++) {
+                    if (images.get(j).dirtier != null) {
+                        markClean(images.get(j).page, images.get(j).dirtier);
+                    }
+                }
+                written.addAndGet(end - i);
+            } catch (IOException e) {
+                // the pages stay dirty and are retried on the next pass
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+            i = end;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -160,11 +1039,36 @@ public class BufferPool {
         _dirtyAndCachePage(tid, effectPages);
     }
 
-    private void _dirtyAndCachePage(TransactionId tid, List<Page> effectPages) {
-        effectPages.forEach(p -> {
+    private void _dirtyAndCachePage(TransactionId tid, List<Page> effectPages) throws DbException {
+        for (Page p : effectPages) {
             p.markDirty(true, tid);
-            pageCache.put(p.getId(), p);
-        });
+            cachePage(p);
+        }
+    }
+
+    /**
+     * Put a page into the pool, replacing any cached version of it.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        prefetcher.invalidate(pid);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                shard.pages.put(pid, page);
+                shard.policy.pageAccessed(pid);
+                return;
+            }
+        }
+        reserveFrame();
+        synchronized (shard) {
+            if (shard.pages.put(pid, page) != null) {
+                resident.decrementAndGet();
+                shard.policy.pageAccessed(pid);
+            } else {
+                shard.policy.pageLoaded(pid);
+            }
+        }
     }
 
     /**
@@ -197,8 +1101,14 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pageId : pageCache.keySet()) {
-            flushPage(pageId);
+        List<Page> pages = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                pages.addAll(shard.pages.values());
+            }
+        }
+        for (Page page : pages) {
+            doFlush(page);
         }
     }
 
@@ -210,18 +1120,31 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        Page page = pageCache.get(pid);
-        try {
-            doFlush(page);
-            if (page != null) {
-                pageCache.remove(pid);
+        prefetcher.invalidate(pid);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            shard.loading.remove(pid);
+            if (shard.pages.remove(pid) != null) {
+                shard.policy.pageRemoved(pid);
+                resident.decrementAndGet();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(0);
+            if (shard.pins.remove(pid) != null) {
+                pinnedPages.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the cached page pid, or null if it is not cached; used by the
+     *         recovery manager to roll back a page from its before image
+     */
+    Page residentPage(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            return shard.pages.get(pid);
         }
     }
 
@@ -230,18 +1153,47 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        Page page = pageCache.get(pid);
+    private void flushPage(PageId pid) throws IOException {
+        Shard shard = shardOf(pid);
+        Page page;
+        synchronized (shard) {
+            page = shard.pages.get(pid);
+        }
         doFlush(page);
         // some code goes here
         // not necessary for lab1
     }
 
+    /**
+     * Write a page if it is dirty and still cached. The update of a
+     * transaction that has not finished is logged first, so that it can be
+     * undone after a crash. Callers hold the pool's monitor, which LogFile
+     * operations that touch the pool acquire before the log's, and no shard
+     * monitor: the log takes shard monitors under its own, for checkpoints.
+     */
     private void doFlush(Page page) throws IOException {
-        if (page != null && page.isDirty() != null) {
+        TransactionId dirtier = page == null ? null : page.isDirty();
+        if (dirtier == null) {
+            return;
+        }
+        if (!finished.contains(dirtier)) {
+            LogFile log = Database.getLogFile();
+            log.logWrite(dirtier, page.getBeforeImage(), page);
+            log.force();
+            // once evicted, the page is read back with the uncommitted
+            // changes as its committed image
+            versions.retain(page);
+            stolen.computeIfAbsent(dirtier, k -> ConcurrentHashMap.newKeySet()).add(page.getId());
+        }
+        Shard shard = shardOf(page.getId());
+        synchronized (shard) {
+            if (shard.pages.get(page.getId()) != page || page.isDirty() == null) {
+                return; // evicted, and so written, or replaced meanwhile
+            }
             DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             file.writePage(page);
             page.markDirty(false, null);
+            prefetcher.invalidate(page.getId());
         }
     }
 
@@ -251,23 +1203,89 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Page p : pagesDirtiedBy(tid)) {
+            flushPage(p.getId());
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy of the first shard that
+     * has an evictable page, starting from a hand that advances on every
+     * eviction. Pinned pages are not evictable, nor are pages dirtied by
+     * transactions that have not finished (NO-STEAL); dirty pages of finished
+     * transactions are written first, outside the shard's monitor, while a
+     * placeholder makes threads asking for the page wait and then read it
+     * back. If no cached page can go, the oldest page read ahead gives up
+     * its frame instead.
+     *
+     * @return false if no page could be evicted only because every frame is
+     *         reserved by a load in progress
+     * @throws DbException if every cached page is pinned, or dirty and not
+     *         evictable
      */
-    private synchronized void evictPage() throws DbException {
+    private boolean evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageCache.evict();
-        try {
-            flushPage(page.getId());
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(0);
+        int start = evictionHand.getAndIncrement();
+        int cached = 0;
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) & (shards.length - 1)];
+            PageId victim;
+            Page page;
+            TransactionId dirtier;
+            CompletableFuture<Page> writing = new CompletableFuture<>();
+            synchronized (shard) {
+                victim = shard.policy.evict(pid -> isEvictable(shard, pid));
+                if (victim == null) {
+                    cached += shard.pages.size();
+                    continue;
+                }
+                page = shard.pages.remove(victim);
+                dirtier = page.isDirty();
+                if (dirtier == null) {
+                    resident.decrementAndGet();
+                    return true;
+                }
+                // the frame stays reserved until the page is on disk
+                shard.loading.put(victim, writing);
+            }
+            try {
+                writeBack(page, dirtier);
+            } catch (IOException e) {
+                synchronized (shard) {
+                    if (shard.loading.remove(victim, writing) && !shard.pages.containsKey(victim)) {
+                        shard.pages.put(victim, page);
+                        shard.policy.pageLoaded(victim);
+                    } else {
+                        // discarded, or cached again by cachePage meanwhile
+                        resident.decrementAndGet();
+                    }
+                }
+                writing.complete(null);
+                throw new DbException("could not flush evicted page " + victim + ": " + e.getMessage());
+            }
+            synchronized (shard) {
+                shard.loading.remove(victim, writing);
+            }
+            resident.decrementAndGet();
+            // threads that waited read the page back from disk
+            writing.complete(null);
+            dirtyEvictions.incrementAndGet();
+            PageCleaner c = cleaner;
+            if (c != null) {
+                c.wakeUp();
+            }
+            return true;
+        }
+        if (prefetcher.dropOldest()) {
+            // a page read ahead held the frame
+            return true;
         }
+        if (cached >= resident.get()) {
+            throw new DbException("no page to evict: all pages in the buffer pool are dirty or pinned");
+        }
+        return false;
     }
- 
 
 }
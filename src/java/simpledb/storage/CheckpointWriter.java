@@ -0,0 +1,74 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * CheckpointWriter writes the dirty page table of a fuzzy checkpoint on a
+ * background thread. The pages are written in batches of
+ * {@link #BATCH_PAGES}, sorted by table and page number, through
+ * {@link BufferPool#writeCommittedImages}, which only holds one shard
+ * monitor at a time; transactions keep running meanwhile. When every page
+ * is written, the LogFile makes the checkpoint the start point of recovery.
+ *
+ * @Threadsafe
+ */
+class CheckpointWriter implements Runnable {
+
+    static final int BATCH_PAGES = 64;
+
+    private final LogFile log;
+    private final BufferPool pool;
+    private final List<PageId> pages;
+    private final Thread thread;
+    private volatile IOException failure;
+
+    CheckpointWriter(LogFile log, BufferPool pool, List<PageId> pages) {
+        this.log = log;
+        this.pool = pool;
+        this.pages = new ArrayList<>(pages);
+        this.thread = new Thread(this, "simpledb-checkpoint");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Wait until the checkpoint is complete.
+     *
+     * @throws IOException if its pages or the log could not be written
+     */
+    void await() throws IOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for checkpoint");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void run() {
+        long written = 0;
+        try {
+            pages.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber));
+            for (int i = 0; i < pages.size(); i += BATCH_PAGES) {
+                written += pool.writeCommittedImages(pages.subList(i, Math.min(pages.size(), i + BATCH_PAGES)));
+            }
+            log.checkpointWritten(this, written);
+        } catch (IOException e) {
+            failure = e;
+            log.checkpointFailed(this);
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+            log.checkpointFailed(this);
+        }
+    }
+}
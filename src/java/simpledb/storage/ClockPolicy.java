@@ -0,0 +1,53 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK keeps pages on a circle in load order, with a reference bit that is
+ * set on every hit. The hand clears set bits as it sweeps past them and
+ * evicts the first page whose bit is already clear, so a hit only costs
+ * setting a flag.
+ * <p>
+ * The circle is a map in insertion order whose head is the hand: passing a
+ * page moves it to the tail.
+ */
+class ClockPolicy implements ReplacementPolicy {
+
+    /** page to reference bit; the head is under the clock hand */
+    private final LinkedHashMap<PageId, Boolean> ring = new LinkedHashMap<>();
+
+    @Override
+    public void pageLoaded(PageId pid) {
+        ring.put(pid, Boolean.FALSE);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        // replacing the value keeps the page's position on the circle
+        ring.replace(pid, Boolean.TRUE);
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        ring.remove(pid);
+    }
+
+    @Override
+    public PageId evict(Predicate<PageId> evictable) {
+        // two turns clear every reference bit, so after that nothing is left
+        // that could become a victim
+        for (int steps = 2 * ring.size(); steps > 0; steps--) {
+            Map.Entry<PageId, Boolean> hand = ring.entrySet().iterator().next();
+            PageId pid = hand.getKey();
+            boolean referenced = hand.getValue();
+            ring.remove(pid);
+            if (!referenced && evictable.test(pid)) {
+                return pid;
+            }
+            ring.put(pid, Boolean.FALSE);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * DbFileChannel wraps the single long-lived FileChannel a DbFile uses for its
+ * page I/O. Reads and writes are positional, so concurrent callers never
+ * share a file pointer and never need an open/seek/close per page.
+ * <p>
+ * The channel is opened lazily and reopened if it was closed, either by
+ * {@link #close()} or because a thread was interrupted in the middle of an
+ * I/O operation. Reads, writes and forces share a read lock, which close
+ * takes exclusively, so closing waits for the I/O in flight instead of
+ * failing it.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel implements Closeable {
+
+    private final File file;
+    private volatile FileChannel channel;
+    /** shared by I/O operations, exclusive for close */
+    private final ReentrantReadWriteLock inUse = new ReentrantReadWriteLock();
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the open channel backing this file, opening it if necessary
+     */
+    public FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Read up to buf.length bytes starting at the given file position.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *         end of the file
+     */
+    public int read(long position, byte[] buf) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        inUse.readLock().lock();
+        try {
+            FileChannel ch = channel();
+            while (bb.hasRemaining()) {
+                int n = ch.read(bb, position + bb.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } finally {
+            inUse.readLock().unlock();
+        }
+        int read = bb.position();
+        return read == 0 && buf.length > 0 ? -1 : read;
+    }
+
+    /**
+     * Write all of data at the given file position, growing the file if
+     * needed.
+     */
+    public void write(long position, byte[] data) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        inUse.readLock().lock();
+        try {
+            FileChannel ch = channel();
+            while (bb.hasRemaining()) {
+                ch.write(bb, position + bb.position());
+            }
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write several buffers back to back, starting at the given file
+     * position, with as few gathering writes as the OS allows.
+     */
+    public void write(long position, byte[][] data) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[data.length];
+        long remaining = 0;
+        for (int i = 0; i < data.length; i++) {
+            bufs[i] = ByteBuffer.wrap(data[i]);
+            remaining += data[i].length;
+        }
+        inUse.readLock().lock();
+        try {
+            FileChannel ch = channel();
+            // gathering writes use the channel position, which nothing else
+            // touches; positional reads and writes may still run concurrently
+            synchronized (this) {
+                ch.position(position);
+                while (remaining > 0) {
+                    remaining -= ch.write(bufs);
+                }
+            }
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /** @return the current size of the file */
+    public long size() throws IOException {
+        inUse.readLock().lock();
+        try {
+            return channel().size();
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Map length bytes of the file from position, read only. The mapping
+     * stays valid after the channel is closed.
+     */
+    public MappedByteBuffer map(long position, long length) throws IOException {
+        inUse.readLock().lock();
+        try {
+            return channel().map(FileChannel.MapMode.READ_ONLY, position, length);
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force any written pages to the storage device.
+     */
+    public void force() throws IOException {
+        inUse.readLock().lock();
+        try {
+            channel().force(false);
+        } finally {
+            inUse.readLock().unlock();
+        }
+    }
+
+    /**
+     * Close the channel once the reads, writes and forces in flight are
+     * done. The next operation reopens it.
+     */
+    @Override
+    public void close() throws IOException {
+        inUse.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        } finally {
+            inUse.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are known to be full, so
+ * that inserts can jump straight to a page that may still have an empty slot
+ * instead of reading the table from the start.
+ * <p>
+ * The map is a bitmap with one bit per page; a set bit means the page is
+ * full. Pages without a set bit (including pages past the end of the map)
+ * may have room. The map is only a hint: callers must still check the page
+ * and report what they found with {@link #update}.
+ * <p>
+ * The bitmap is persisted next to the heap file, in a file with the suffix
+ * {@code .fsm}, when the map is closed. Loading the map deletes that file,
+ * so a persisted map always describes the heap file as it was closed: after
+ * a crash there is none, and the map is rebuilt as inserts visit pages. A
+ * persisted map is also ignored if the heap file was modified after it was
+ * written, e.g. because the table was regenerated.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    static final String SUFFIX = ".fsm";
+
+    private final File heapFile;
+    private final File mapFile;
+    private BitSet full;
+
+    public FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.mapFile = new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the first page at or after fromPage that may have an empty
+     *         slot. This may be past the last page of the file, meaning a
+     *         new page should be appended.
+     */
+    public synchronized int nextPageWithSpace(int fromPage) {
+        return bits().nextClearBit(fromPage);
+    }
+
+    /**
+     * Record whether a page has at least one empty slot.
+     */
+    public synchronized void update(int pageNo, boolean hasSpace) {
+        bits().set(pageNo, !hasSpace);
+    }
+
+    /**
+     * Persist the map if it was loaded, and release it.
+     */
+    public synchronized void close() throws IOException {
+        if (full != null) {
+            Files.write(mapFile.toPath(), full.toByteArray());
+        }
+        full = null;
+    }
+
+    private BitSet bits() {
+        if (full == null) {
+            full = load();
+        }
+        return full;
+    }
+
+    private BitSet load() {
+        BitSet bits = new BitSet();
+        if (mapFile.exists()) {
+            try {
+                if (mapFile.lastModified() >= heapFile.lastModified()) {
+                    bits = BitSet.valueOf(Files.readAllBytes(mapFile.toPath()));
+                }
+                // from now on the file may not match the pages; close()
+                // writes it again
+                Files.delete(mapFile.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+                bits = new BitSet();
+            }
+        }
+        return bits;
+    }
+}
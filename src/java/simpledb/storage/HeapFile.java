@@ -19,9 +19,12 @@ import java.util.*;
  * @see HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, PageRunWriter, Closeable {
     private final File file;
     private final TupleDesc tupleDesc;
+    private final DbFileChannel channel;
+    private final MappedSegments mapping;
+    private final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -30,9 +33,25 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f      the file that stores the on-disk backing store for this heap
+     *               file.
+     * @param mapped if true, pages are read from a memory mapping of the file
+     *               instead of through channel reads. Meant for read-mostly
+     *               tables; writes always go through the channel.
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.channel = new DbFileChannel(f);
+        this.mapping = mapped ? new MappedSegments(channel) : null;
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -45,6 +64,20 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return the map of pages known to be full, kept up to date by HeapPage
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * @return true if this HeapFile reads its pages through a memory mapping
+     */
+    public boolean isMapped() {
+        return mapping != null;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -79,11 +112,12 @@ public class HeapFile implements DbFile {
         if (idx >= numPages()) {
             return appendPage(idx);
         }
-        try (FileInputStream ins = new FileInputStream(file);
-             BufferedInputStream bi = new BufferedInputStream(ins)) {
-            bi.skip((long) idx * BufferPool.getPageSize());
+        try {
             byte[] buf = new byte[BufferPool.getPageSize()];
-            bi.read(buf, 0, BufferPool.getPageSize());
+            long offset = (long) idx * BufferPool.getPageSize();
+            if (mapping == null || !mapping.read(offset, buf)) {
+                channel.read(offset, buf);
+            }
             return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), buf);
         } catch (IOException e) {
             e.printStackTrace();
@@ -93,10 +127,13 @@ public class HeapFile implements DbFile {
     }
 
     private HeapPage appendPage(int idx) {
-        try (FileOutputStream fos = new FileOutputStream(file, true);
-             BufferedOutputStream bf = new BufferedOutputStream(fos)) {
+        try {
             byte[] empty = HeapPage.createEmptyPageData();
-            bf.write(empty);
+            long offset = (long) idx * BufferPool.getPageSize();
+            channel.write(offset, empty);
+            if (mapping != null) {
+                mapping.invalidate(offset);
+            }
             return new HeapPage(new HeapPageId(getId(), idx), empty);
         } catch (IOException e) {
             e.printStackTrace();
@@ -107,18 +144,23 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        try (RandomAccessFile fos = new RandomAccessFile(file, "rw")) {
-            int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-            if (file.length() < offset + BufferPool.getPageSize()) {
-                fos.setLength(offset + BufferPool.getPageSize());
-            }
-            fos.skipBytes(offset);
-            fos.write(page.getPageData());
-        }
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        channel.write(offset, page.getPageData());
         // some code goes here
         // not necessary for lab1
     }
 
+    // see PageRunWriter.java for javadocs
+    public boolean isNextPage(PageId pid, PageId next) {
+        return pid.getTableId() == getId() && next.getTableId() == getId()
+                && next.getPageNumber() == pid.getPageNumber() + 1;
+    }
+
+    // see PageRunWriter.java for javadocs
+    public void writePages(PageId first, byte[][] data) throws IOException {
+        channel.write((long) first.getPageNumber() * BufferPool.getPageSize(), data);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -128,20 +170,47 @@ public class HeapFile implements DbFile {
 
     }
 
+    /**
+     * Closes the channel this file uses for page I/O and persists its free
+     * space map. Closing waits for the page reads and writes in flight, and
+     * both are reopened on next use, so closing a file that is still in use
+     * is safe, merely wasteful.
+     */
+    public void close() throws IOException {
+        if (mapping != null) {
+            mapping.clear();
+        }
+        freeSpace.close();
+        channel.close();
+    }
+
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         BufferPool pool = Database.getBufferPool();
-        int idx = 0;
+        int idx = Math.min(freeSpace.nextPageWithSpace(0), numPages());
         while (true) {
-            HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(getId(), idx), Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() == 0) {
-                idx++;
-                continue;
+            HeapPageId pid = new HeapPageId(getId(), idx);
+            boolean locked = pool.holdsLock(tid, pid);
+            // pinned, so the page cannot be evicted between the change and markDirty
+            try (PageHandle handle = pool.getPinnedPage(tid, pid, Permissions.READ_WRITE)) {
+                HeapPage page = (HeapPage) handle.getPage();
+                if (page.getNumEmptySlots() == 0) {
+                    // stale hint: remember the page is full and try the next
+                    // candidate; the page was only read, so the lock taken
+                    // for it need not be kept
+                    if (!locked) {
+                        pool.unsafeReleasePage(tid, pid);
+                    }
+                    freeSpace.update(idx, false);
+                    idx = Math.min(freeSpace.nextPageWithSpace(idx + 1), numPages());
+                    continue;
+                }
+                page.insertTuple(t);
+                page.markDirty(true, tid);
+                return Collections.singletonList(page);
             }
-            page.insertTuple(t);
-            return Collections.singletonList(page);
         }
         // not necessary for lab1
     }
@@ -153,11 +222,15 @@ public class HeapFile implements DbFile {
         if (t.getRecordId() == null) {
             throw new DbException("no recordId found ");
         }
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        ArrayList<Page> list = new ArrayList<>();
-        list.add(page);
-        return list;
+        BufferPool pool = Database.getBufferPool();
+        try (PageHandle handle = pool.getPinnedPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE)) {
+            HeapPage page = (HeapPage) handle.getPage();
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+            ArrayList<Page> list = new ArrayList<>();
+            list.add(page);
+            return list;
+        }
     }
 
     // see DbFile.java for javadocs
@@ -169,6 +242,8 @@ public class HeapFile implements DbFile {
         return new AbstractDbFileIterator() {
             int pageIdx = -1;
             Iterator<Tuple> it;
+            ScanRing ring;
+            ReadAhead readAhead;
 
             @Override
             protected Tuple readNext() throws DbException, TransactionAbortedException {
@@ -179,15 +254,17 @@ public class HeapFile implements DbFile {
                     throw new NoSuchElementException();
                 }
                 if (it == null) {
-                    HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(getId(), 0), null);
+                    readAhead.accessed(0);
+                    HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(getId(), 0), Permissions.READ_ONLY, ring);
                     it = page.iterator();
                 }
                 if (it.hasNext()) {
                     return it.next();
                 }
-                while (pageIdx < totalPage) {
+                while (pageIdx + 1 < totalPage) {
                     pageIdx++;
-                    HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(getId(), pageIdx), null);
+                    readAhead.accessed(pageIdx);
+                    HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(getId(), pageIdx), Permissions.READ_ONLY, ring);
                     it = page.iterator();
                     if (it.hasNext()) {
                         return it.next();
@@ -200,17 +277,21 @@ public class HeapFile implements DbFile {
             public void close() {
                 super.close();
                 pageIdx = -2;
+                ring = null;
             }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 pageIdx = 0;
+                ring = pool.scanRingFor(totalPage);
+                readAhead = new ReadAhead(pool, i -> new HeapPageId(getId(), i), totalPage);
             }
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
                 pageIdx = 0;
                 it = null;
+                readAhead = new ReadAhead(pool, i -> new HeapPageId(getId(), i), totalPage);
             }
         };
     }
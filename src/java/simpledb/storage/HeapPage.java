@@ -7,9 +7,9 @@ import simpledb.common.EmptyIterator;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Objects;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -23,9 +23,22 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+
+    /**
+     * The raw page: header bytes followed by the tuple slots. Tuples are
+     * decoded from it on demand. Replaced and written only under dataLock.
+     */
+    volatile byte[] data;
+    /**
+     * True while data may be referenced outside this page (by the caller that
+     * passed it in, or by tuple views handed out by the iterator). Mutators
+     * copy data first so those references keep seeing the old bytes.
+     * Guarded by dataLock.
+     */
+    private boolean shared;
+    private final Object dataLock = new Object();
 
     byte[] oldData;
     private final Byte oldDataLock = (byte) 0;
@@ -52,22 +65,15 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        // tuples are not decoded here; they are read from data on demand
+        if (data.length < BufferPool.getPageSize()) {
+            this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+            this.shared = false;
+        } else {
+            this.data = data;
+            this.shared = true;
         }
-        dis.close();
 
         setBeforeImage();
     }
@@ -109,9 +115,10 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        byte[] copy = getPageData();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = copy;
         }
     }
 
@@ -123,37 +130,21 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot's tuple within the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Copy the page data if anyone else may still be looking at it, so it
+     * can be modified in place. Callers hold dataLock.
+     */
+    private void ensureWritable() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
-
-        return t;
     }
 
     /**
@@ -168,64 +159,18 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        byte[] page;
+        synchronized (dataLock) {
+            page = Arrays.copyOf(data, BufferPool.getPageSize());
         }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        // empty slots and padding are written as zeroes
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(page, i)) {
+                Arrays.fill(page, slotOffset(i), slotOffset(i + 1), (byte) 0);
             }
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        Arrays.fill(page, slotOffset(numSlots), page.length, (byte) 0);
+        return page;
     }
 
     /**
@@ -258,11 +203,17 @@ public class HeapPage implements Page {
             throw new DbException("Empty page");
         }
 
-        Tuple exist = tuples[recordId.getTupleNumber()];
-        if (exist != null) {
-            if (Objects.equals(exist.getRecordId(), recordId)) {
-                tuples[recordId.getTupleNumber()]=null;
-                markSlotUsed(recordId.getTupleNumber(), false);
+        int slot = recordId.getTupleNumber();
+        if (pid.equals(recordId.getPageId()) && slot >= 0 && slot < numSlots) {
+            synchronized (dataLock) {
+                if (isSlotUsed(slot)) {
+                    markSlotUsed(slot, false);
+                } else {
+                    slot = -1;
+                }
+            }
+            if (slot >= 0) {
+                updateFreeSpace();
                 return;
             }
         }
@@ -282,11 +233,20 @@ public class HeapPage implements Page {
         if (getNumEmptySlots() == 0) {
             throw new DbException("the page is full,no empty slots");
         }
+        byte[] bytes = serialize(t);
         for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                markSlotUsed(i, true);
-                tuples[i] = t;
+            boolean taken = false;
+            synchronized (dataLock) {
+                if (!isSlotUsed(i)) {
+                    ensureWritable();
+                    System.arraycopy(bytes, 0, data, slotOffset(i), td.getSize());
+                    markSlotUsed(i, true);
+                    taken = true;
+                }
+            }
+            if (taken) {
                 t.setRecordId(new RecordId(pid, i));
+                updateFreeSpace();
                 return;
             }
         }
@@ -295,6 +255,38 @@ public class HeapPage implements Page {
         // not necessary for lab1
     }
 
+    /**
+     * Tell the owning HeapFile's free space map whether this page has room
+     * left. Called by the BufferPool when an abort restores the page, since
+     * the map was told at insert and delete time.
+     */
+    void updateFreeSpace() {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).getFreeSpaceMap().update(pid.getPageNumber(), getNumEmptySlots() > 0);
+        }
+    }
+
+    private byte[] serialize(Tuple t) throws DbException {
+        if (t.getTupleDesc().numFields() != td.numFields()) {
+            throw new DbException("tupledesc mismatch");
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        if (baos.size() != td.getSize()) {
+            throw new DbException("tupledesc mismatch");
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -322,13 +314,15 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
+        return numSlots - usedSlots(data);
+    }
+
+    private int usedSlots(byte[] data) {
         int c = 0;
-        for (byte b : header) {
-            for (int j = 0; j < 8; j++) {
-                c += ((b & (1 << j)) >> j);
-            }
+        for (int i = 0; i < headerSize; i++) {
+            c += Integer.bitCount(data[i] & 0xff);
         }
-        return numSlots - c;
+        return c;
     }
 
     /**
@@ -336,9 +330,13 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] data, int i) {
         int idx = i / 8;
         int off = i % 8;
-        byte b = header[idx];
+        byte b = data[idx];
         return (b & (1 << off)) >> off == 1;
     }
 
@@ -348,14 +346,18 @@ public class HeapPage implements Page {
     public void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int idx = i / 8;
-        int off = i % 8;
-        byte b = header[idx];
-        int mask = 1 << off;
-        if (value) {
-            header[idx] = (byte) (b | mask);
-        } else {
-            header[idx] = (byte) (b & (0B11111111 ^ mask));
+        synchronized (dataLock) {
+            ensureWritable();
+            byte[] data = this.data;
+            int idx = i / 8;
+            int off = i % 8;
+            byte b = data[idx];
+            int mask = 1 << off;
+            if (value) {
+                data[idx] = (byte) (b | mask);
+            } else {
+                data[idx] = (byte) (b & (0B11111111 ^ mask));
+            }
         }
     }
 
@@ -366,9 +368,16 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * The tuples are views that decode their fields from the page on first
+     * access; later modifications of the page do not affect them.
      */
     public Iterator<Tuple> iterator() {
-        int valid = validSlot();
+        byte[] snapshot;
+        synchronized (dataLock) {
+            shared = true;
+            snapshot = data;
+        }
+        int valid = usedSlots(snapshot);
         if (valid == 0) {
             return new EmptyIterator<>();
         }
@@ -383,10 +392,15 @@ public class HeapPage implements Page {
 
             @Override
             public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
                 while (true) {
-                    if (isSlotUsed(idx)) {
+                    if (isSlotUsed(snapshot, idx)) {
                         i++;
-                        return tuples[idx++];
+                        Tuple t = new Tuple(td, snapshot, slotOffset(idx));
+                        t.setRecordId(new RecordId(pid, idx++));
+                        return t;
                     } else {
                         idx++;
                     }
@@ -0,0 +1,113 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K (O'Neil, O'Neil and Weikum) evicts the page whose K-th most recent
+ * access lies furthest in the past. Pages referenced fewer than K times have
+ * an infinite backward K-distance and go first, least recently used first,
+ * so pages touched once by a scan never displace pages that are re-read.
+ * <p>
+ * The access history of evicted pages is retained for up to capacity pages,
+ * so a page that comes back soon keeps its earlier references. Accesses are
+ * timestamped with a logical clock; the correlated reference period of the
+ * paper is not modelled.
+ */
+class LRUKPolicy implements ReplacementPolicy {
+
+    /** Access history of one page; times[0] is the most recent access */
+    private static class History {
+        final PageId pid;
+        final long[] times;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void record(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        /** the K-th most recent access, or 0 if there were fewer than K */
+        long kth() {
+            return times[times.length - 1];
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final Map<PageId, History> tracked = new HashMap<>();
+    /** tracked pages, eviction candidates first */
+    private final TreeSet<History> order = new TreeSet<>((a, b) -> {
+        int c = Long.compare(a.kth(), b.kth());
+        return c != 0 ? c : Long.compare(a.times[0], b.times[0]);
+    });
+    private final LinkedHashMap<PageId, History> retained;
+
+    /**
+     * @param k        number of accesses remembered per page
+     * @param capacity pages the policy is expected to track
+     */
+    LRUKPolicy(int k, int capacity) {
+        this.k = k;
+        final int maxRetained = Math.max(1, capacity);
+        this.retained = new LinkedHashMap<PageId, History>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > maxRetained;
+            }
+        };
+    }
+
+    @Override
+    public void pageLoaded(PageId pid) {
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.record(++clock);
+        tracked.put(pid, h);
+        order.add(h);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        History h = tracked.get(pid);
+        if (h != null) {
+            // the ordering key changes, so re-insert
+            order.remove(h);
+            h.record(++clock);
+            order.add(h);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        History h = tracked.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+    }
+
+    @Override
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                it.remove();
+                tracked.remove(h.pid);
+                retained.put(h.pid, h);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Evicts the least recently used page.
+ */
+class LRUPolicy implements ReplacementPolicy {
+
+    /** tracked pages, least recently used first */
+    private final LinkedHashMap<PageId, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void pageLoaded(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        order.get(pid);
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    @Override
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<PageId> it = order.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,382 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager grants the locks of a BufferPool under strict two-phase
+ * locking. Locks are multi-granularity: before a transaction locks a page in
+ * S or X mode, it takes an IS or IX lock on the page's table (see
+ * {@link LockMode}), and a table lock in S, SIX or X mode stands for the
+ * page locks it covers. A transaction may strengthen a lock it holds, e.g.
+ * upgrade the only shared lock on a page to an exclusive one.
+ * <p>
+ * Once a transaction holds more page locks on one table than the
+ * escalation threshold, the manager tries to replace them with a single S or
+ * X lock on the table, so that a large scan does not fill the lock table.
+ * Escalation never waits: if the table lock conflicts with another
+ * transaction's, the page locks are kept and escalation is tried again with
+ * the next page.
+ * <p>
+ * The lock table is split into stripes, each with its own monitor, so
+ * requests for unrelated pages do not contend. A transaction that cannot
+ * get a lock waits on the stripe's monitor. Whenever it blocks on a new set
+ * of holders, the edges of a {@link WaitForGraph} are updated and checked
+ * for a cycle through it; the youngest transaction of a cycle is aborted at
+ * once, whether it is the one that just blocked or another waiter.
+ * The locks of every transaction are also kept in a per-transaction record,
+ * so releasing them at the end of a transaction costs O(locks held).
+ *
+ * @Threadsafe
+ */
+class LockManager {
+
+    /** Number of stripes of the lock table; a power of two */
+    private static final int STRIPES = 64;
+
+    /** The key of a table lock in the lock table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 31 + 7;
+        }
+    }
+
+    /** The holders of one lock, and the mode each holds it in. */
+    private static class Lock {
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+    }
+
+    private static class Stripe {
+        final Map<Object, Lock> locks = new HashMap<>();
+    }
+
+    /** The locks one transaction holds. */
+    private static class Held {
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        final Map<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        final Map<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<TransactionId, Held> held = new ConcurrentHashMap<>();
+    private final WaitForGraph waitForGraph = new WaitForGraph();
+    private volatile int escalationThreshold;
+
+    private final AtomicLong deadlockAborts = new AtomicLong();
+    private final AtomicLong deadlockChecks = new AtomicLong();
+    private final AtomicLong deadlockCheckNanos = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    /**
+     * @param escalationThreshold the number of page locks on one table
+     *                            beyond which they are escalated to a table
+     *                            lock; 0 disables escalation
+     */
+    LockManager(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    private Stripe stripeOf(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking while another transaction
+     * holds a conflicting one. The lock is taken on the page under an
+     * intention lock on its table, unless tid already holds a table lock
+     * that covers it.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock
+     */
+    void acquire(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        LockMode mode = exclusive ? LockMode.X : LockMode.S;
+        int tableId = pid.getTableId();
+        Held h = held.computeIfAbsent(tid, k -> new Held());
+        LockMode tableMode = h.tables.get(tableId);
+        if (tableMode != null && tableMode.covers(mode)) {
+            return;
+        }
+        LockMode intention = exclusive ? LockMode.IX : LockMode.IS;
+        if (tableMode == null || !tableMode.covers(intention)) {
+            // only the first page lock of a table in a mode goes to the
+            // table key's stripe, which every page of the table shares
+            h.tables.put(tableId, lock(tid, new TableKey(tableId), intention, true));
+        }
+        lock(tid, pid, mode, true);
+        if (h.pages.add(pid)) {
+            int pages = h.pagesPerTable.merge(tableId, 1, Integer::sum);
+            int threshold = escalationThreshold;
+            if (threshold > 0 && pages > threshold) {
+                escalate(tid, h, tableId);
+            }
+        }
+    }
+
+    /**
+     * Replace tid's page locks on a table by one table lock, S if it only
+     * reads the table and X if it writes it, unless that has to wait.
+     */
+    private void escalate(TransactionId tid, Held h, int tableId) throws TransactionAbortedException {
+        LockMode target = h.tables.get(tableId) == LockMode.IS ? LockMode.S : LockMode.X;
+        LockMode granted = lock(tid, new TableKey(tableId), target, false);
+        if (granted == null) {
+            return;
+        }
+        h.tables.put(tableId, granted);
+        for (Iterator<PageId> it = h.pages.iterator(); it.hasNext(); ) {
+            PageId pid = it.next();
+            if (pid.getTableId() == tableId) {
+                it.remove();
+                unlock(tid, pid);
+            }
+        }
+        h.pagesPerTable.remove(tableId);
+        escalations.incrementAndGet();
+    }
+
+    /**
+     * Lock key in mode for tid, combined with the mode tid already holds it
+     * in.
+     *
+     * @param block false to give up rather than wait
+     * @return the mode tid now holds key in, or null if block is false and
+     *         the lock could not be granted at once
+     */
+    private LockMode lock(TransactionId tid, Object key, LockMode mode, boolean block)
+            throws TransactionAbortedException {
+        Stripe stripe = stripeOf(key);
+        try {
+            while (true) {
+                synchronized (stripe) {
+                    if (waitForGraph.isVictim(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    Lock lock = stripe.locks.computeIfAbsent(key, k -> new Lock());
+                    if (tryGrant(lock, tid, mode)) {
+                        return lock.holders.get(tid);
+                    }
+                    if (!block) {
+                        return null;
+                    }
+                    if (!waitForGraph.setWaiting(tid, blockers(lock, tid, mode), stripe)) {
+                        // no new edge, so no new cycle: wait for a release
+                        // or for being chosen as a victim
+                        try {
+                            stripe.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        }
+                        continue;
+                    }
+                }
+                // the check runs outside the stripe's monitor, which waking
+                // a victim blocked on another stripe must not be nested in
+                resolveDeadlock(tid);
+            }
+        } finally {
+            if (block) {
+                waitForGraph.stopWaiting(tid);
+            }
+        }
+    }
+
+    /**
+     * Look for a deadlock that tid's new edges closed, and abort its
+     * youngest transaction.
+     *
+     * @throws TransactionAbortedException if tid itself is the victim
+     */
+    private void resolveDeadlock(TransactionId tid) throws TransactionAbortedException {
+        long start = System.nanoTime();
+        TransactionId victim = waitForGraph.chooseVictim(tid);
+        deadlockChecks.incrementAndGet();
+        deadlockCheckNanos.addAndGet(System.nanoTime() - start);
+        if (victim == null) {
+            return;
+        }
+        deadlockAborts.incrementAndGet();
+        if (victim.equals(tid)) {
+            throw new TransactionAbortedException();
+        }
+        Object monitor = waitForGraph.monitorOf(victim);
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the transactions whose locks keep tid from getting lock in
+     *         mode; called with the stripe's monitor held
+     */
+    private static Set<TransactionId> blockers(Lock lock, TransactionId tid, LockMode mode) {
+        LockMode wanted = mode.combine(lock.holders.get(tid));
+        Set<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !wanted.isCompatibleWith(e.getValue())) {
+                blockers.add(e.getKey());
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Grant the lock if it is compatible with the modes of the other
+     * holders; called with the stripe's monitor held.
+     */
+    private static boolean tryGrant(Lock lock, TransactionId tid, LockMode mode) {
+        LockMode current = lock.holders.get(tid);
+        LockMode wanted = mode.combine(current);
+        if (wanted == current) {
+            return true;
+        }
+        for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !wanted.isCompatibleWith(e.getValue())) {
+                return false;
+            }
+        }
+        lock.holders.put(tid, wanted);
+        return true;
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    long getDeadlockAborts() {
+        return deadlockAborts.get();
+    }
+
+    /** @return the number of times the wait-for graph was checked for a cycle */
+    long getDeadlockChecks() {
+        return deadlockChecks.get();
+    }
+
+    /** @return the total time spent checking the wait-for graph, in nanoseconds */
+    long getDeadlockCheckNanos() {
+        return deadlockCheckNanos.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    long getEscalations() {
+        return escalations.get();
+    }
+
+    /**
+     * @return true if tid holds a shared or exclusive lock on pid, or a
+     *         table lock that covers one
+     */
+    boolean holdsLock(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h == null) {
+            return false;
+        }
+        LockMode tableMode = h.tables.get(pid.getTableId());
+        if (tableMode != null && tableMode.covers(LockMode.S)) {
+            return true;
+        }
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            Lock lock = stripe.locks.get(pid);
+            return lock != null && lock.holders.containsKey(tid);
+        }
+    }
+
+    /** @return the pages tid holds a page lock on; a live, unmodifiable view */
+    Set<PageId> lockedPages(TransactionId tid) {
+        Held h = held.get(tid);
+        return h == null ? Collections.emptySet() : Collections.unmodifiableSet(h.pages);
+    }
+
+    /** @return the tables tid holds an exclusive table lock on */
+    Set<Integer> exclusiveTables(TransactionId tid) {
+        Held h = held.get(tid);
+        if (h == null) {
+            return Collections.emptySet();
+        }
+        Set<Integer> tables = new HashSet<>();
+        for (Map.Entry<Integer, LockMode> e : h.tables.entrySet()) {
+            if (e.getValue() == LockMode.X) {
+                tables.add(e.getKey());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Release tid's page lock on pid, if it holds one. The lock on the
+     * page's table is kept.
+     */
+    void release(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h != null && h.pages.remove(pid)) {
+            h.pagesPerTable.merge(pid.getTableId(), -1, Integer::sum);
+        }
+        unlock(tid, pid);
+    }
+
+    /** Release every lock tid holds. */
+    void releaseAll(TransactionId tid) {
+        Held h = held.remove(tid);
+        if (h == null) {
+            return;
+        }
+        for (PageId pid : h.pages) {
+            unlock(tid, pid);
+        }
+        for (Integer tableId : h.tables.keySet()) {
+            unlock(tid, new TableKey(tableId));
+        }
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Lock lock = stripe.locks.get(key);
+            if (lock == null) {
+                return;
+            }
+            lock.holders.remove(tid);
+            if (lock.holders.isEmpty()) {
+                stripe.locks.remove(key);
+            }
+            stripe.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+/**
+ * The modes of the LockManager's multi-granularity locks. Tables are locked
+ * in any mode; pages only in S or X, under an IS or IX lock on their table.
+ */
+enum LockMode {
+    /** intention shared: the holder reads some pages of the table */
+    IS,
+    /** intention exclusive: the holder writes some pages of the table */
+    IX,
+    /** shared */
+    S,
+    /** shared with intention exclusive: reads all pages, writes some */
+    SIX,
+    /** exclusive */
+    X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //         IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /** @return true if locks in this mode and other can be held at once */
+    boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode that grants everything this and other do */
+    LockMode combine(LockMode other) {
+        if (this == other || other == null) {
+            return this;
+        }
+        if (this == X || other == X) {
+            return X;
+        }
+        if (this == SIX || other == SIX) {
+            return SIX;
+        }
+        if ((this == IX && other == S) || (this == S && other == IX)) {
+            return SIX;
+        }
+        // IS combined with IX or S
+        return this == IS ? other : this;
+    }
+
+    /** @return true if a lock in this mode grants everything other does */
+    boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+}
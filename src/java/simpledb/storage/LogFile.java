@@ -6,8 +6,10 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.TimeUnit;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -43,40 +45,50 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log records are stored in segment files of a fixed size next
+to the log file, named after it with a dot and the segment number in
+hex (see SegmentedLog); offsets are positions in the sequence of all
+segments, and never change.  The log file itself holds the offset of the
+last complete checkpoint, or -1 if there are no checkpoints, followed by
+the segment size.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log where the record began.  Reading stops at the
+first record whose trailing offset does not match, which is how the
+end of the log is told from stale bytes in a recycled segment.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS identify the page by a page type tag, its table id
+and its page number, followed by the byte ranges in which the before and
+after images of the page differ, with the before and after bytes of each
+range.  See UpdateRecord for the encoding, and LogFile.print() for an
+example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then an
+integer count of dirty pages, and the page type tag, integer table id and
+integer page number of each (see UpdateRecord.writePageId).  The offset
+in the log file only moves to a checkpoint once all of its dirty pages
+are written, see logCheckpoint().
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final SegmentedLog segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,6 +98,9 @@ public class LogFile {
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** the default size of a log segment file, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = SegmentedLog.DEFAULT_SEGMENT_SIZE;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -95,6 +110,30 @@ public class LogFile {
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // the record being built, see beginRecord()
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(); // protected by this
+    private final DataOutputStream record = new DataOutputStream(recordBytes); // protected by this
+
+    // group commit, see logCommit()
+    private final Object flushLock = new Object();
+    private long commitsAppended = 0; // protected by this
+    private long commitsDurable = 0; // protected by flushLock
+    private boolean flushing = false; // protected by flushLock
+    private long commitForces = 0; // protected by flushLock
+    private volatile long groupCommitWindowMicros = 0;
+
+    // recovery, see recover()
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private long redonePages = 0; // protected by this
+    private long undoneTransactions = 0; // protected by this
+
+    // fuzzy checkpoints, see logCheckpoint()
+    private CheckpointWriter checkpointWriter; // protected by this
+    private long pendingCheckpoint = NO_CHECKPOINT_ID; // protected by this
+    private long checkpoints = 0; // protected by this
+    private long checkpointPages = 0; // protected by this
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,8 +146,18 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, for a log with segments of the given size; an
+        existing log keeps the size it was created with.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new SegmentedLog(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,14 +178,34 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = segments.end();
         }
     }
 
+    /** Start building a record of the given type for tid, to be ended
+        by appendRecord(). */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    /** End the record being built with its start offset, and append it
+        to the log buffer; it reaches the segment files when the log is
+        flushed or forced.
+
+        @return the offset the record starts at
+    */
+    private long appendRecord() throws IOException {
+        long start = currentOffset;
+        record.writeLong(start);
+        segments.append(recordBytes.toByteArray());
+        currentOffset = segments.end();
+        return start;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -160,10 +229,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -172,20 +239,109 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Commits are forced in groups: the record is appended under this
+        monitor, but the force happens outside it, so that other
+        transactions can append their commit records meanwhile. One of the
+        waiting committers becomes the flusher; it waits for the group
+        commit window, forces the log once for every commit appended so
+        far, and wakes the others.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commit;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            commit = ++commitsAppended;
+        }
+        awaitDurable(commit);
+    }
+
+    /**
+     * Wait until the commit record numbered commit, and all before it, are
+     * on disk, forcing the log if no other thread is doing so.
+     */
+    private void awaitDurable(long commit) throws IOException {
+        while (true) {
+            synchronized (flushLock) {
+                while (flushing && commitsDurable < commit) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for group commit");
+                    }
+                }
+                if (commitsDurable >= commit) {
+                    return;
+                }
+                flushing = true;
+            }
+            try {
+                long window = groupCommitWindowMicros;
+                if (window > 0) {
+                    TimeUnit.MICROSECONDS.sleep(window);
+                }
+                long target;
+                FileChannel channel;
+                synchronized (this) {
+                    target = commitsAppended;
+                    channel = segments.flush();
+                }
+                try {
+                    if (channel != null) {
+                        channel.force(false); // the segments are preallocated
+                    }
+                } catch (ClosedChannelException e) {
+                    // the log was reset meanwhile; retry
+                    continue;
+                }
+                synchronized (flushLock) {
+                    commitsDurable = Math.max(commitsDurable, target);
+                    commitForces++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for group commit");
+            } finally {
+                synchronized (flushLock) {
+                    flushing = false;
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set how long the flusher of a group commit waits for more commits
+     * before it forces the log; 0, the default, forces at once and only
+     * groups the commits that arrive during the previous force.
+     */
+    public void setGroupCommitWindow(long micros) {
+        groupCommitWindowMicros = Math.max(0, micros);
+    }
+
+    public long getGroupCommitWindow() {
+        return groupCommitWindowMicros;
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the number of commit records written */
+    public synchronized long getCommits() {
+        return commitsAppended;
+    }
+
+    /** @return the number of forces done by group commits */
+    public long getCommitForces() {
+        synchronized (flushLock) {
+            return commitForces;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -199,95 +355,22 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id and changed byte ranges (see UpdateRecord)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        DataOutputStream update = beginRecord(UPDATE_RECORD, tid.getId());
+        UpdateRecord.diff(after.getId(), before.getPageData(), after.getPageData()).write(update);
+        appendRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
-    }
-
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -300,150 +383,193 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), appendRecord());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record, and wait until
+        the checkpoint is complete.
+
+        @see #beginCheckpoint
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        beginCheckpoint();
+        awaitCheckpoint();
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    /** Start a fuzzy checkpoint, unless one is already running.
+        <p>
+        The CHECKPOINT record, with the active transactions and the dirty
+        page table of the buffer pool, is written under this monitor only;
+        the pool is not frozen. A background CheckpointWriter then writes
+        the committed images of the dirty pages in batches while
+        transactions go on. Once they are all written, the checkpoint offset in
+        the log file is moved to the record, so that recovery starts
+        there, and the log is truncated.
+        <p>
+        Until then recovery starts at the previous checkpoint. Updates
+        logged before the record by transactions that were still active,
+        whose pages need not be in the dirty page table, are redone from
+        the transactions' first records.
+    */
+    public void beginCheckpoint() throws IOException {
+        BufferPool pool = Database.getBufferPool();
+        synchronized (this) {
+            if (checkpointWriter != null) {
+                return;
             }
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            List<PageId> dirty = new ArrayList<>(pool.dirtyPages());
+            DataOutputStream record = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            record.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                record.writeLong(e.getKey());
+                record.writeLong(e.getValue());
+            }
+            // and the dirty page table
+            record.writeInt(dirty.size());
+            for (PageId pid : dirty) {
+                UpdateRecord.writePageId(record, pid);
+            }
+            pendingCheckpoint = appendRecord();
+            checkpointWriter = new CheckpointWriter(this, pool, dirty);
+            checkpointWriter.start();
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+    }
+
+    /** Wait until the running checkpoint, if any, is complete.
+
+        @throws IOException if it failed; recovery then still starts at
+        the previous checkpoint
+    */
+    public void awaitCheckpoint() throws IOException {
+        CheckpointWriter running;
+        synchronized (this) {
+            running = checkpointWriter;
+        }
+        if (running != null) {
+            running.await();
         }
+    }
 
+    /** Called by the CheckpointWriter once the dirty pages of the pending
+        checkpoint are written: make it the start point of recovery. */
+    void checkpointWritten(CheckpointWriter writer, long pages) throws IOException {
+        synchronized (this) {
+            if (writer != checkpointWriter) {
+                return;
+            }
+            // the record must be on disk before the pointer to it
+            force();
+            segments.setCheckpoint(pendingCheckpoint);
+            checkpoints++;
+            checkpointPages += pages;
+            pendingCheckpoint = NO_CHECKPOINT_ID;
+            checkpointWriter = null;
+        }
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Called by the CheckpointWriter if the checkpoint failed. */
+    synchronized void checkpointFailed(CheckpointWriter writer) {
+        if (writer == checkpointWriter) {
+            pendingCheckpoint = NO_CHECKPOINT_ID;
+            checkpointWriter = null;
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    /** @return the number of checkpoints completed */
+    public synchronized long getCheckpoints() {
+        return checkpoints;
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** @return the number of dirty pages completed checkpoints wrote */
+    public synchronized long getCheckpointPages() {
+        return checkpointPages;
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.
+        <p>
+        Recovery scans from the first record of the oldest transaction
+        active at the last complete checkpoint, as listed in the
+        checkpoint record, so everything before that and before the first
+        record of every active transaction is unneeded, even if the
+        transactions in the checkpoint record have finished since; the
+        segments that lie wholly before that point are released, which
+        deletes or recycles their files. Records never move, so this only
+        holds this monitor to find the point, and writers go on while the
+        files are dropped.
+    */
+    public void logTruncate() throws IOException {
+        long keepFrom;
+        synchronized (this) {
+            preAppend();
+            long cpLoc = segments.checkpoint();
+            if (cpLoc == NO_CHECKPOINT_ID) {
+                return;
+            }
+            keepFrom = readCheckpoint(cpLoc, new HashSet<>());
+            for (long first : tidToFirstLogRecord.values()) {
+                keepFrom = Math.min(keepFrom, first);
             }
+        }
+        Debug.log("TRUNCATING LOG BEFORE " + keepFrom);
+        segments.release(keepFrom);
+    }
 
-            int numOutstanding = raf.readInt();
+    /** Read the checkpoint record at cpLoc.
 
+        @param active receives the transactions active at the checkpoint
+        @return the offset recovery starts scanning at: the first record
+        of the oldest of them, or cpLoc
+    */
+    private long readCheckpoint(long cpLoc, Set<Long> active) throws IOException {
+        try (DataInputStream cp = new DataInputStream(new BufferedInputStream(segments.reader(cpLoc)))) {
+            if (cp.readInt() != CHECKPOINT_RECORD) {
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            }
+            cp.readLong();
+            int numOutstanding = cp.readInt();
+            long scanStart = cpLoc;
             for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+                active.add(cp.readLong());
+                scanStart = Math.min(scanStart, cp.readLong());
             }
+            return scanStart;
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** @return the offset at which the next record will be written */
+    public synchronized long getLogEnd() {
+        return currentOffset == -1 ? segments.end() : currentOffset;
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
-        }
+    /** @return the number of segment files the log currently has */
+    public int getLogSegments() {
+        return segments.getSegments();
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** @return the number of segments released by truncation so far */
+    public long getReleasedSegments() {
+        return segments.getReleasedSegments();
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the number of segments that reused a released segment's file */
+    public long getRecycledSegments() {
+        return segments.getRecycledSegments();
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the number of writes that moved the log buffer to the segment files */
+    public long getLogWrites() {
+        return segments.getWrites();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,6 +586,17 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("no BEGIN record for transaction " + tid.getId());
+                }
+                List<UpdateRecord> updates = new ArrayList<>();
+                scanLog(first, (type, recordTid, offset, update) -> {
+                    if (update != null && recordTid == tid.getId()) {
+                        updates.add(update);
+                    }
+                });
+                LogReplay.undo(tid, updates);
             }
         }
     }
@@ -468,10 +605,12 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,94 +620,280 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        One analysis pass over the log, starting at the first record of
+        the oldest transaction active at the last checkpoint, finds the
+        committed and the unfinished (loser) transactions and their
+        UPDATE records. The updates of committed transactions logged
+        since the checkpoint, and all updates of committed transactions
+        that were active at it, are then redone, with the pages partitioned
+        over the recovery threads, and after that the updates of the
+        losers are undone, one loser per thread. Transactions that
+        aborted were rolled back on disk before their ABORT record was
+        written, so they need neither. Finally an ABORT record is logged
+        for every loser, so that a later recovery does not undo them
+        again over newer updates.
+
+        @see #setRecoveryThreads
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (segments.isEmpty()) {
+                    // nothing was logged
+                    segments.reset();
+                    currentOffset = segments.end();
+                    return;
+                }
+                long cpLoc = segments.checkpoint();
+                long redoStart = segments.first();
+                long scanStart = redoStart;
+                // transactions active at the checkpoint, which may have
+                // updates before it to redo or undo; every other update
+                // before it is on disk, as the checkpoint wrote its dirty
+                // page table before becoming the start point
+                Set<Long> activeAtCheckpoint = new HashSet<>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    scanStart = readCheckpoint(cpLoc, activeAtCheckpoint);
+                    redoStart = cpLoc;
+                }
+                if (scanStart < segments.first()) {
+                    // truncating the log from scanStart would lose it all
+                    throw new IOException("log segment of offset " + scanStart
+                            + " is missing; the log starts at " + segments.first());
+                }
+
+                // analysis
+                final long redoFrom = redoStart;
+                Set<Long> begun = new HashSet<>(activeAtCheckpoint);
+                Set<Long> committed = new HashSet<>();
+                Set<Long> aborted = new HashSet<>();
+                List<Long> updateTids = new ArrayList<>();
+                List<UpdateRecord> updates = new ArrayList<>();
+                long end = scanLog(scanStart, (type, tid, offset, update) -> {
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        begun.add(tid);
+                        break;
+                    case COMMIT_RECORD:
+                        committed.add(tid);
+                        break;
+                    case ABORT_RECORD:
+                        aborted.add(tid);
+                        break;
+                    case UPDATE_RECORD:
+                        if (offset >= redoFrom || activeAtCheckpoint.contains(tid)) {
+                            updateTids.add(tid);
+                            updates.add(update);
+                        }
+                        break;
+                    }
+                });
+                Set<Long> losers = new HashSet<>(begun);
+                losers.removeAll(committed);
+                losers.removeAll(aborted);
+
+                // redo, then undo
+                Map<PageId, List<UpdateRecord>> redo = new LinkedHashMap<>();
+                Map<Long, List<UpdateRecord>> undo = new HashMap<>();
+                for (int i = 0; i < updates.size(); i++) {
+                    long tid = updateTids.get(i);
+                    UpdateRecord u = updates.get(i);
+                    if (committed.contains(tid)) {
+                        redo.computeIfAbsent(u.getPageId(), k -> new ArrayList<>()).add(u);
+                    } else if (!aborted.contains(tid)) {
+                        losers.add(tid);
+                        undo.computeIfAbsent(tid, k -> new ArrayList<>()).add(u);
+                    }
+                }
+                int threads = recoveryThreads;
+                LogReplay.redo(redo, threads);
+                LogReplay.undo(undo.values(), threads);
+                redonePages += redo.size();
+                undoneTransactions += losers.size();
+
+                // drop a torn last record, and finish the losers
+                segments.truncate(end);
+                currentOffset = end;
+                for (long tid : losers) {
+                    beginRecord(ABORT_RECORD, tid);
+                    appendRecord();
+                }
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    /**
+     * Set the number of threads recover() uses to redo and undo updates;
+     * by default, the number of processors.
+     */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = Math.max(1, threads);
+    }
+
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** @return the number of pages whose updates recover() redid */
+    public synchronized long getRedonePages() {
+        return redonePages;
+    }
 
-        raf.seek(0);
+    /** @return the number of unfinished transactions recover() undid */
+    public synchronized long getUndoneTransactions() {
+        return undoneTransactions;
+    }
+
+    /** Called by scanLog() for each complete record, with the UPDATE
+        record's contents or null for the other record types. */
+    private interface RecordVisitor {
+        void visit(int type, long tid, long offset, UpdateRecord update) throws IOException;
+    }
+
+    /** Read the log from the record at offset start to its end through a
+        buffered stream of its own.
+        <p>
+        The scan stops at the first bytes that are not a complete record
+        ending with its own offset: a record cut short by a crash, or the
+        stale bytes that follow the last record in a recycled segment.
+
+        @return the offset just past the last complete record
+    */
+    private long scanLog(long start, RecordVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(segments.reader(start), SCAN_BUFFER_SIZE))) {
+            long offset = start;
+            while (true) {
+                int type;
+                long tid;
+                UpdateRecord update = null;
+                long size = INT_SIZE + LONG_SIZE + LONG_SIZE;
+                try {
+                    type = in.readInt();
+                    tid = in.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        update = UpdateRecord.read(in);
+                        size += update.size();
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = in.readInt();
+                        for (int i = 0; i < numXactions; i++) {
+                            in.readLong();
+                            in.readLong();
+                        }
+                        int numDirty = in.readInt();
+                        for (int i = 0; i < numDirty; i++) {
+                            UpdateRecord.readPageId(in);
+                        }
+                        size += INT_SIZE + (long) Math.max(0, numXactions) * 2 * LONG_SIZE
+                                + INT_SIZE + (long) Math.max(0, numDirty) * UpdateRecord.PAGE_ID_SIZE;
+                        break;
+                    case ABORT_RECORD:
+                    case COMMIT_RECORD:
+                    case BEGIN_RECORD:
+                        break;
+                    default:
+                        return offset;
+                    }
+                    if (in.readLong() != offset) {
+                        return offset;
+                    }
+                } catch (EOFException | StreamCorruptedException e) {
+                    return offset;
+                }
+                visitor.visit(type, tid, offset, update);
+                offset += size;
+            }
+        }
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /** Print out a human readable represenation of the log */
+    public void print() throws IOException {
+        System.out.println("checkpoint record at offset " + segments.checkpoint());
 
+        long offset = segments.first();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(segments.reader(offset)));
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println(offset + ": RECORD TYPE " + cpType);
+                System.out.println((offset + INT_SIZE) + ": TID " + cpTid);
+                offset += INT_SIZE + LONG_SIZE;
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println(offset + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    offset += INT_SIZE;
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        System.out.println(offset + ": TID: " + tid);
+                        System.out.println((offset + LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        offset += 2 * LONG_SIZE;
+                    }
+                    int numDirty = in.readInt();
+                    System.out.println(offset + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    offset += INT_SIZE;
+                    while (numDirty-- > 0) {
+                        PageId dirty = UpdateRecord.readPageId(in);
+                        System.out.println(offset + ": DIRTY PAGE: table "
+                                + dirty.getTableId() + " page " + dirty.getPageNumber());
+                        offset += UpdateRecord.PAGE_ID_SIZE;
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    UpdateRecord update = UpdateRecord.read(in);
+                    PageId pid = update.getPageId();
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(offset + ": page type " + update.getPageType());
+                    System.out.println((offset + 1) + ": table id " + pid.getTableId());
+                    System.out.println((offset + 1 + INT_SIZE) + ": page number " + pid.getPageNumber());
+                    System.out.println((offset + 1 + 2 * INT_SIZE) + " TO " + (offset + update.size())
+                            + ": " + update.getRanges() + " changed byte ranges");
+                    offset += update.size();
 
                     break;
+                default:
+                    return;
                 }
+                System.out.println(offset + ": RECORD START OFFSET: " + in.readLong());
+                offset += LONG_SIZE;
 
-            } catch (EOFException e) {
+            } catch (EOFException | StreamCorruptedException e) {
                 //e.printStackTrace();
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        segments.force();
+        synchronized (flushLock) {
+            commitsDurable = Math.max(commitsDurable, commitsAppended);
+        }
     }
 
 }
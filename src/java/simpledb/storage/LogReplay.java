@@ -0,0 +1,188 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * LogReplay applies UPDATE records read back from the log to the pages on
+ * disk, for LogFile's rollback and recovery.
+ * <p>
+ * Each page is read once, has all of its records applied to its bytes, and
+ * is written once; the page is then discarded from the buffer pool, so
+ * that the next reader sees the result. Redo partitions the pages by
+ * PageId over a pool of worker threads, so all records of a page are
+ * applied in log order by one thread. Undo runs one task per transaction:
+ * strict two-phase locking keeps an exclusive lock on every page a
+ * transaction updated until it ends, so the pages of two unfinished
+ * transactions never overlap.
+ */
+class LogReplay {
+
+    private LogReplay() {
+    }
+
+    /** @return the updates grouped by page, in log order within each page */
+    static Map<PageId, List<UpdateRecord>> byPage(List<UpdateRecord> updates) {
+        Map<PageId, List<UpdateRecord>> pages = new LinkedHashMap<>();
+        for (UpdateRecord u : updates) {
+            pages.computeIfAbsent(u.getPageId(), k -> new ArrayList<>()).add(u);
+        }
+        return pages;
+    }
+
+    /**
+     * Redo the updates of every page, on up to threads threads.
+     *
+     * @param pages the updates to redo of each page, in log order
+     */
+    static void redo(Map<PageId, List<UpdateRecord>> pages, int threads) throws IOException {
+        int partitions = Math.max(1, Math.min(threads, pages.size()));
+        List<List<Map.Entry<PageId, List<UpdateRecord>>>> parts = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, List<UpdateRecord>> e : pages.entrySet()) {
+            parts.get(Math.floorMod(e.getKey().hashCode(), partitions)).add(e);
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (List<Map.Entry<PageId, List<UpdateRecord>>> part : parts) {
+            tasks.add(() -> {
+                for (Map.Entry<PageId, List<UpdateRecord>> e : part) {
+                    byte[] data = image(null, e.getKey());
+                    for (UpdateRecord u : e.getValue()) {
+                        u.redo(data);
+                    }
+                    write(e.getKey(), data);
+                }
+                return null;
+            });
+        }
+        run(tasks, threads);
+    }
+
+    /**
+     * Undo the updates of several unfinished transactions, on up to threads
+     * threads.
+     *
+     * @param transactions the updates of each transaction, in log order
+     */
+    static void undo(Collection<List<UpdateRecord>> transactions, int threads) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (List<UpdateRecord> updates : transactions) {
+            tasks.add(() -> {
+                undo(null, updates);
+                return null;
+            });
+        }
+        run(tasks, threads);
+    }
+
+    /**
+     * Undo the updates of a transaction on the calling thread.
+     *
+     * @param tid the transaction, if it is live: its cached pages are rolled
+     *            back from their before images; null to read pages from disk
+     * @param updates the updates of the transaction, in log order
+     */
+    static void undo(TransactionId tid, List<UpdateRecord> updates) throws IOException {
+        for (Map.Entry<PageId, List<UpdateRecord>> e : byPage(updates).entrySet()) {
+            byte[] data = image(tid, e.getKey());
+            List<UpdateRecord> page = e.getValue();
+            for (int i = page.size() - 1; i >= 0; i--) {
+                page.get(i).undo(data);
+            }
+            write(e.getKey(), data);
+        }
+    }
+
+    /**
+     * @return the bytes of page pid to apply records to: those of the
+     *         committed image if tid has the page dirty in the buffer pool,
+     *         and otherwise those of the page on disk
+     */
+    private static byte[] image(TransactionId tid, PageId pid) {
+        if (tid != null) {
+            Page cached = Database.getBufferPool().residentPage(pid);
+            if (cached != null && tid.equals(cached.isDirty())) {
+                return cached.getBeforeImage().getPageData();
+            }
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
+
+    private static void write(PageId pid, byte[] data) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (!(file instanceof PageRunWriter)) {
+            throw new IOException("cannot write recovered pages of " + file.getClass().getName());
+        }
+        ((PageRunWriter) file).writePages(pid, new byte[][]{data});
+        if (file instanceof HeapFile) {
+            // undo may free slots; a wrong hint of free space is corrected
+            // by the next insert
+            ((HeapFile) file).getFreeSpaceMap().update(pid.getPageNumber(), true);
+        }
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    private static void run(List<Callable<Void>> tasks, int threads) throws IOException {
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), r -> {
+            Thread t = new Thread(r, "simpledb-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (Future<Void> f : workers.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    rethrow(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during recovery");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (Exception e) {
+            rethrow(e);
+        }
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+}
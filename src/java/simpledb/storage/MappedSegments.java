@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedSegments maps a file into memory as a sequence of large read-only
+ * segments, so that pages can be copied straight out of the page cache
+ * without a read syscall. Segments are mapped on first use; a segment that
+ * was mapped before the file grew past it is re-mapped when a read needs
+ * bytes beyond its end, or eagerly through {@link #invalidate(long)}.
+ * <p>
+ * Writes never go through the mapping: they use the FileChannel, and the
+ * read-only mapping observes them through the shared page cache.
+ *
+ * @Threadsafe
+ */
+class MappedSegments {
+
+    /** Bytes per mapped segment */
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final DbFileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedSegments(DbFileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Copy buf.length bytes starting at position out of the mapping.
+     *
+     * @return false if the range is not (yet) in the file or straddles two
+     *         segments, in which case the caller should use channel I/O
+     */
+    boolean read(long position, byte[] buf) throws IOException {
+        int seg = (int) (position / SEGMENT_SIZE);
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + (long) buf.length > SEGMENT_SIZE) {
+            return false;
+        }
+        MappedByteBuffer mapped = segment(seg, offset + buf.length);
+        if (mapped == null) {
+            return false;
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position(offset);
+        view.get(buf);
+        return true;
+    }
+
+    /**
+     * Drop the segment holding position so the next read re-maps it at the
+     * current file size. Called when the file is extended.
+     */
+    synchronized void invalidate(long position) {
+        int seg = (int) (position / SEGMENT_SIZE);
+        if (seg < segments.length) {
+            MappedByteBuffer[] copy = segments.clone();
+            copy[seg] = null;
+            segments = copy;
+        }
+    }
+
+    /** Drop every mapping; the buffers are unmapped once garbage collected. */
+    synchronized void clear() {
+        segments = new MappedByteBuffer[0];
+    }
+
+    private MappedByteBuffer segment(int seg, int minLength) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (seg < current.length && current[seg] != null && current[seg].capacity() >= minLength) {
+            return current[seg];
+        }
+        synchronized (this) {
+            current = segments;
+            if (seg < current.length && current[seg] != null && current[seg].capacity() >= minLength) {
+                return current[seg];
+            }
+            long start = seg * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE, channel.size() - start);
+            if (length < minLength) {
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(start, length);
+            MappedByteBuffer[] copy = new MappedByteBuffer[Math.max(current.length, seg + 1)];
+            System.arraycopy(current, 0, copy, 0, current.length);
+            copy[seg] = mapped;
+            segments = copy;
+            return mapped;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * PageCleaner is the optional background writer of a BufferPool. Every
+ * interval, or sooner when an eviction had to write a dirty page, it asks
+ * the pool to write back the dirty pages of finished transactions (see
+ * {@link BufferPool#cleanPages()}), so that getPage misses can usually evict
+ * a clean page.
+ *
+ * @Threadsafe
+ */
+class PageCleaner implements Runnable {
+
+    private final BufferPool pool;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean wakeUp = false; // protected by this
+
+    PageCleaner(BufferPool pool, long intervalMillis) {
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "simpledb-page-cleaner");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the cleaner and wait for the pass in progress, if any. The
+     * thread is woken, never interrupted: an interrupt during a write would
+     * close the table's shared FileChannel under the other threads' reads.
+     */
+    void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Run a pass now rather than at the end of the current interval. */
+    synchronized void wakeUp() {
+        wakeUp = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    if (!wakeUp && running) {
+                        wait(intervalMillis);
+                    }
+                    wakeUp = false;
+                    if (!running) {
+                        return;
+                    }
+                }
+                pool.cleanPages();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // the pages stay dirty; eviction or the next pass writes them
+                pool.cleanerFailed();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+/**
+ * PageHandle keeps a page pinned in the BufferPool until it is closed, so
+ * the page cannot be evicted while its holder still works on it. Handles
+ * are meant for try-with-resources:
+ *
+ * <pre>
+ *     try (PageHandle h = pool.getPinnedPage(tid, pid, Permissions.READ_WRITE)) {
+ *         HeapPage page = (HeapPage) h.getPage();
+ *         ...
+ *     }
+ * </pre>
+ *
+ * Closing a handle more than once unpins the page only once. The handles of
+ * snapshot transactions hold private copies and pin nothing.
+ *
+ * @see BufferPool#getPinnedPage
+ */
+public class PageHandle implements AutoCloseable {
+
+    private final BufferPool pool;
+    private final Page page;
+    private boolean closed = false;
+
+    /**
+     * @param pool the pool to unpin the page in, or null if it is not pinned
+     */
+    PageHandle(BufferPool pool, Page page) {
+        this.pool = pool;
+        this.page = page;
+    }
+
+    /** @return the pinned page */
+    public Page getPage() {
+        return page;
+    }
+
+    /** Unpin the page. */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (pool != null) {
+                pool.unpinPage(page.getId());
+            }
+        }
+    }
+}
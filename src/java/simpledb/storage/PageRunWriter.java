@@ -0,0 +1,25 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * PageRunWriter is implemented by DbFiles that can write a run of pages
+ * stored next to each other with a single vectored write. The BufferPool's
+ * page cleaner uses it to coalesce the dirty pages it writes back.
+ */
+public interface PageRunWriter {
+
+    /**
+     * @return true if page next is stored immediately after page pid in this
+     *         file
+     */
+    boolean isNextPage(PageId pid, PageId next);
+
+    /**
+     * Write data.length pages, the first one being page first, each page
+     * stored immediately after the previous one.
+     *
+     * @param data the contents of each page, as returned by getPageData()
+     */
+    void writePages(PageId first, byte[][] data) throws IOException;
+}
@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads pages on background threads on behalf of a BufferPool.
+ * Pages that have been read ahead wait in a staging area until a getPage
+ * miss claims them, so background threads never touch the pool itself and a
+ * page that is never asked for does not evict anything. The staging area is
+ * a small window of at most {@link #WINDOW} pages; when it overflows, the
+ * oldest staged page is dropped and counted as wasted.
+ * <p>
+ * Each staged page takes one of the pool's frames, so staged and cached
+ * pages together never exceed the pool's size. A page is only read ahead
+ * into a free frame, and its frame is given back when the page leaves the
+ * staging area: when a miss claims it, whose load has a frame of its own,
+ * or when it is dropped. The pool drops staged pages to make room when it
+ * has nothing else to evict.
+ * <p>
+ * A staged page is a copy of what was on disk when it was read, so the pool
+ * {@link #invalidate invalidates} it whenever it writes or replaces the page.
+ *
+ * @Threadsafe
+ */
+class Prefetcher {
+
+    /** Background readers, shared by every BufferPool */
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "simpledb-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /** the most pages staged at once */
+    static final int WINDOW = 16;
+
+    private final int capacity;
+    /** the pool's count of reserved frames, and its size */
+    private final AtomicInteger frames;
+    private final int totalFrames;
+    /** staged pages in the order they were requested */
+    private final LinkedHashMap<PageId, Future<Page>> staged = new LinkedHashMap<>();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    /**
+     * @param capacity    the most pages to stage, at most {@link #WINDOW}
+     * @param frames      the pool's count of reserved frames, which staged
+     *                    pages are charged to
+     * @param totalFrames the number of frames of the pool
+     */
+    Prefetcher(int capacity, AtomicInteger frames, int totalFrames) {
+        this.capacity = Math.max(1, Math.min(WINDOW, capacity));
+        this.frames = frames;
+        this.totalFrames = totalFrames;
+    }
+
+    /**
+     * Start reading a page in the background unless it is already staged,
+     * or the pool has no free frame for it.
+     */
+    synchronized void prefetch(PageId pid) {
+        if (staged.containsKey(pid)) {
+            return;
+        }
+        if (staged.size() >= capacity) {
+            dropOldest();
+        }
+        int n;
+        do {
+            n = frames.get();
+            if (n >= totalFrames) {
+                return;
+            }
+        } while (!frames.compareAndSet(n, n + 1));
+        staged.put(pid, READERS.submit(
+                () -> Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid)));
+        issued.incrementAndGet();
+    }
+
+    /**
+     * Claim a staged page, waiting for its read to finish if needed.
+     *
+     * @return the page, or null if it was not staged or could not be read
+     */
+    Page take(PageId pid) {
+        Future<Page> f;
+        synchronized (this) {
+            f = staged.remove(pid);
+        }
+        if (f == null) {
+            return null;
+        }
+        frames.decrementAndGet();
+        try {
+            Page page = f.get();
+            hits.incrementAndGet();
+            return page;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // read it again in the foreground and let that report the error
+        }
+        wasted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Drop the staged copy of a page, if any, because it may be out of date.
+     */
+    synchronized void invalidate(PageId pid) {
+        Future<Page> f = staged.remove(pid);
+        if (f != null) {
+            f.cancel(false);
+            frames.decrementAndGet();
+            wasted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the oldest staged page and give back its frame.
+     *
+     * @return false if no page was staged
+     */
+    synchronized boolean dropOldest() {
+        Iterator<Future<Page>> it = staged.values().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        it.next().cancel(false);
+        it.remove();
+        frames.decrementAndGet();
+        wasted.incrementAndGet();
+        return true;
+    }
+
+    long getIssued() {
+        return issued.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getWasted() {
+        return wasted.get();
+    }
+}
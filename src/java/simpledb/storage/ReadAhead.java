@@ -0,0 +1,51 @@
+package simpledb.storage;
+
+import java.util.function.IntFunction;
+
+/**
+ * ReadAhead watches the page numbers one scan reads and, once it has seen
+ * two consecutive ones, asks the BufferPool to prefetch the following
+ * {@link BufferPool#getPrefetchDepth() depth} pages in the background, so
+ * that work on page k overlaps the reads of pages k+1..k+depth. A jump
+ * backwards or forwards resets the detector.
+ * <p>
+ * A ReadAhead belongs to one iterator and is not thread safe.
+ */
+public class ReadAhead {
+
+    private final BufferPool pool;
+    private final IntFunction<PageId> pageId;
+    private final int endPage;
+
+    private int last = Integer.MIN_VALUE;
+    private int prefetchedTo = Integer.MIN_VALUE;
+
+    /**
+     * @param pool    the pool to prefetch into
+     * @param pageId  maps a page number of the file to its PageId
+     * @param endPage one past the last page number that may be prefetched
+     */
+    public ReadAhead(BufferPool pool, IntFunction<PageId> pageId, int endPage) {
+        this.pool = pool;
+        this.pageId = pageId;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Report that the scan is about to read page pgNo.
+     */
+    public void accessed(int pgNo) {
+        boolean sequential = pgNo == last + 1;
+        last = pgNo;
+        int depth = pool.getPrefetchDepth();
+        if (!sequential || depth <= 0) {
+            prefetchedTo = pgNo;
+            return;
+        }
+        int to = (int) Math.min((long) pgNo + depth, endPage - 1L);
+        for (int p = Math.max(prefetchedTo + 1, pgNo + 1); p <= to; p++) {
+            pool.prefetch(pageId.apply(p));
+        }
+        prefetchedTo = Math.max(prefetchedTo, to);
+    }
+}
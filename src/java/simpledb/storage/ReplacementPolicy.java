@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool evicts when it
+ * needs room for another page. The BufferPool reports every page it caches,
+ * every cache hit and every page it drops, and asks the policy for a victim
+ * when it is full.
+ * <p>
+ * Implementations are not thread safe; the BufferPool keeps one policy per
+ * shard and only calls it while holding that shard's monitor.
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record that a page was just read into the cache (a miss).
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * Record a cache hit on a page the policy is tracking.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Stop tracking a page that left the cache without being chosen by
+     * {@link #evict}, e.g. because it was discarded.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a victim among the tracked pages and stop tracking it.
+     *
+     * @param evictable pages for which this returns false must not be chosen
+     * @return the page to evict, or null if no tracked page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+
+    /**
+     * The replacement policies a BufferPool can be created with.
+     */
+    enum Type {
+        /** Least recently used */
+        LRU("lru"),
+        /** Second chance FIFO driven by a reference bit per page */
+        CLOCK("clock"),
+        /** 2Q: pages only enter the main LRU queue when re-referenced */
+        TWO_Q("2q"),
+        /** LRU-2: evict the page whose second to last access is oldest */
+        LRU_K("lru-k"),
+        /** Adaptive replacement cache, balancing recency against frequency */
+        ARC("arc");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @param capacity the number of pages the policy is expected to track
+         * @return a new, empty policy of this type
+         */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+            case CLOCK:
+                return new ClockPolicy();
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            case LRU_K:
+                return new LRUKPolicy(2, capacity);
+            case ARC:
+                return new ARCPolicy(capacity);
+            default:
+                return new LRUPolicy();
+            }
+        }
+
+        /**
+         * @return the type whose label (e.g. "arc", "2q") or constant name
+         *         matches name, ignoring case
+         * @throws IllegalArgumentException if there is no such type
+         */
+        public static Type forName(String name) {
+            for (Type t : values()) {
+                if (t.label.equalsIgnoreCase(name) || t.name().equalsIgnoreCase(name)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Unknown replacement policy " + name);
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.storage;
+
+/**
+ * ScanRing is a small private set of frames used by a sequential scan over
+ * a table that is too large for the BufferPool. Pages the scan reads from
+ * disk are kept in the ring, replacing the oldest one, instead of being
+ * cached in the pool, so a full-table scan cannot push hot pages out of the
+ * pool. Pages that are already cached in the pool, dirty or not, are still
+ * returned from the pool.
+ * <p>
+ * A ring belongs to one iterator and is not thread safe. Page objects are
+ * not recycled: tuples handed out by a page may still refer to its data
+ * after the page leaves the ring.
+ *
+ * @see BufferPool#scanRingFor(int)
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    private final Page[] frames;
+    private int next = 0;
+
+    /**
+     * @param size number of pages the ring holds
+     */
+    public ScanRing(int size) {
+        this.frames = new Page[size];
+    }
+
+    /** @return the number of pages the ring holds */
+    public int size() {
+        return frames.length;
+    }
+
+    /**
+     * @return the page with the given id if it is still in the ring, else null
+     */
+    Page get(PageId pid) {
+        for (Page p : frames) {
+            if (p != null && p.getId().equals(pid)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a page in the ring, replacing the oldest one.
+     */
+    void add(Page page) {
+        frames[next] = page;
+        next = (next + 1) % frames.length;
+    }
+}
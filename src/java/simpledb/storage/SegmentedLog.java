@@ -0,0 +1,503 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * SegmentedLog stores the bytes of a LogFile in segment files of a fixed
+ * size, so that the log is truncated by deleting whole segments instead of
+ * being rewritten.
+ * <p>
+ * Log offsets are positions in one sequence of bytes that never moves:
+ * segment n holds the bytes from n * segmentSize up to (n + 1) *
+ * segmentSize, in the file named after the control file, a dot, and n in 16
+ * hex digits. A record may span two segments. The control file holds the
+ * offset of the last complete checkpoint and the segment size.
+ * <p>
+ * Appends are assembled in a log buffer of {@link #BUFFER_SIZE} bytes, and
+ * reach the last segment with one channel write when the log is flushed:
+ * by {@link #flush} or {@link #force}, when the buffer is full, or when a
+ * reader needs them. Moving on to a new segment forces the previous one,
+ * so only the last segment can hold bytes that are not on disk.
+ * <p>
+ * Segment files are preallocated: a new one is filled with zeros up to
+ * the segment size and forced, so appends never change a file's size and
+ * forcing them need not write its metadata. The file of the next segment
+ * is prepared by a background thread as soon as a segment is created, so
+ * appends that move on to it only rename it. Segments that lie wholly
+ * before the point recovery needs are {@link #release released}: up to
+ * {@link #MAX_SPARE_SEGMENTS} of their files are kept as spares and
+ * renamed to become the next segments, already allocated, and the others
+ * are deleted. A reused file still holds old bytes past the write
+ * position; readers tell them and the zeros from records because every
+ * record of the log ends with its own offset.
+ *
+ * @Threadsafe
+ */
+class SegmentedLog {
+
+    static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    static final int MAX_SPARE_SEGMENTS = 2;
+    static final int BUFFER_SIZE = 1 << 18;
+
+    private static final long NO_CHECKPOINT = -1;
+    private static final String SPARE = "spare";
+    private static final int ZEROS = 1 << 16;
+    private static final int CONTROL_SIZE = 2 * Long.BYTES;
+
+    /** Zeroes the next segment of every log, off the appending threads */
+    private static final ExecutorService PREALLOCATOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-log-preallocator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Segment {
+        final long index;
+        final File file;
+        final FileChannel channel;
+
+        Segment(long index, File file) throws IOException {
+            this.index = index;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private final File control;
+    private final RandomAccessFile controlFile;
+    private final long segmentSize;
+    private long checkpoint; // protected by this
+    /** live segments by index */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // protected by this
+    private final ArrayDeque<File> spares = new ArrayDeque<>(); // protected by this
+    /** the bytes appended after written, not yet in the files */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // protected by this
+    private long written; // protected by this
+    private long end; // protected by this
+    private int nextSpare = 0; // protected by this
+    private long releasedSegments = 0; // protected by this
+    private long recycledSegments = 0; // protected by this
+    private long writes = 0; // protected by this
+    /** the file of the next segment, being zeroed by the preallocator */
+    private Future<File> prepared; // protected by this
+    private boolean preparedRecycled; // protected by this
+
+    /**
+     * Open the log whose control file is control, with the segments next to
+     * it. A log that already has a control file keeps the segment size it
+     * was created with.
+     */
+    SegmentedLog(File control, long segmentSize) throws IOException {
+        this.control = control.getAbsoluteFile();
+        this.controlFile = new RandomAccessFile(this.control, "rw");
+        long stored = 0;
+        if (controlFile.length() == CONTROL_SIZE) {
+            checkpoint = controlFile.readLong();
+            stored = controlFile.readLong();
+        }
+        if (stored <= 0) {
+            // a new log, or a file that is not a control file: start afresh
+            checkpoint = NO_CHECKPOINT;
+            stored = segmentSize;
+        }
+        this.segmentSize = stored;
+        String prefix = this.control.getName() + ".";
+        File[] files = this.control.getParentFile().listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            String suffix = name.substring(prefix.length());
+            if (suffix.startsWith(SPARE)) {
+                spares.add(f);
+                try {
+                    nextSpare = Math.max(nextSpare, Integer.parseInt(suffix.substring(SPARE.length())) + 1);
+                } catch (NumberFormatException e) {
+                    // keep the spare, whatever its number
+                }
+            } else if (suffix.length() == 16) {
+                try {
+                    long index = Long.parseUnsignedLong(suffix, 16);
+                    segments.put(index, new Segment(index, f));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        // an upper bound until recovery finds the last record
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        end = last == null ? 0 : last.getKey() * this.segmentSize + last.getValue().channel.size();
+        written = end;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the offset of the last complete checkpoint, or -1 */
+    synchronized long checkpoint() {
+        return checkpoint;
+    }
+
+    /** Durably make offset the last complete checkpoint. */
+    synchronized void setCheckpoint(long offset) throws IOException {
+        writeControl(offset);
+    }
+
+    private void writeControl(long offset) throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(offset);
+        controlFile.writeLong(segmentSize);
+        controlFile.setLength(CONTROL_SIZE);
+        controlFile.getChannel().force(true);
+        checkpoint = offset;
+    }
+
+    /** @return true if the log holds no segment */
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /** @return the offset of the first byte still in the log */
+    synchronized long first() {
+        return segments.isEmpty() ? end : Math.min(end, segments.firstKey() * segmentSize);
+    }
+
+    /** @return the offset just past the last byte appended */
+    synchronized long end() {
+        return end;
+    }
+
+    /** @return the number of live segments */
+    synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /** @return the number of segments released so far */
+    synchronized long getReleasedSegments() {
+        return releasedSegments;
+    }
+
+    /** @return the number of segments that reused the file of a released one */
+    synchronized long getRecycledSegments() {
+        return recycledSegments;
+    }
+
+    /** @return the number of channel writes that appended to the segments */
+    synchronized long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Append data at the end of the log, in the log buffer unless it does
+     * not fit in an empty one.
+     *
+     * @return the offset data starts at
+     */
+    synchronized long append(byte[] data) throws IOException {
+        long start = end;
+        if (data.length > buffer.remaining()) {
+            flush();
+        }
+        if (data.length > buffer.remaining()) {
+            write(ByteBuffer.wrap(data));
+        } else {
+            buffer.put(data);
+        }
+        end += data.length;
+        return start;
+    }
+
+    /**
+     * Write the log buffer to the segments.
+     *
+     * @return the channel of the last segment, which holds the bytes that
+     *         may not be on disk yet, or null if there is none
+     */
+    synchronized FileChannel flush() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        return last == null ? null : last.getValue().channel;
+    }
+
+    /** Write data at written, with one channel write per segment it spans. */
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            Segment s = segmentFor(written / segmentSize);
+            long pos = written % segmentSize;
+            int n = (int) Math.min(data.remaining(), segmentSize - pos);
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + n);
+            while (part.hasRemaining()) {
+                pos += s.channel.write(part, pos);
+            }
+            writes++;
+            data.position(data.position() + n);
+            written += n;
+        }
+    }
+
+    /** @return segment index, which is created if needed */
+    private Segment segmentFor(long index) throws IOException {
+        Segment s = segments.get(index);
+        if (s != null) {
+            return s;
+        }
+        Segment previous = segments.get(index - 1);
+        if (previous != null) {
+            previous.channel.force(true);
+        }
+        File file = new File(control.getParentFile(), String.format("%s.%016x", control.getName(), index));
+        File prepared = takePrepared();
+        if (prepared != null && prepared.renameTo(file)) {
+            if (preparedRecycled) {
+                recycledSegments++;
+            }
+            s = new Segment(index, file);
+        } else {
+            // nothing was prepared: this is the first segment of the log,
+            // or the preallocator failed
+            File spare = spares.poll();
+            if (spare != null && spare.renameTo(file)) {
+                recycledSegments++;
+            }
+            s = new Segment(index, file);
+            zero(s, s.channel.size());
+        }
+        segments.put(index, s);
+        prepareNext();
+        return s;
+    }
+
+    /**
+     * Start preallocating the file of the next segment in the background,
+     * from a spare if there is one, so that moving on to it is a rename.
+     */
+    private void prepareNext() {
+        File spare = spares.poll();
+        preparedRecycled = spare != null;
+        File f = spare != null ? spare
+                : new File(control.getParentFile(), control.getName() + "." + SPARE + nextSpare++);
+        prepared = PREALLOCATOR.submit(() -> {
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                zero(channel, channel.size());
+            }
+            return f;
+        });
+    }
+
+    /**
+     * @return the file prepared by {@link #prepareNext}, waiting for it if
+     *         needed, or null if there is none or preparing it failed
+     */
+    private File takePrepared() throws IOException {
+        if (prepared == null) {
+            return null;
+        }
+        try {
+            return prepared.get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while preallocating a log segment");
+        } finally {
+            prepared = null;
+        }
+    }
+
+    /** Fill segment s with zeros from pos up to the segment size, and force it. */
+    private void zero(Segment s, long pos) throws IOException {
+        zero(s.channel, pos);
+    }
+
+    private void zero(FileChannel channel, long pos) throws IOException {
+        if (pos < segmentSize) {
+            ByteBuffer zeros = ByteBuffer.allocate(ZEROS);
+            while (pos < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZEROS, segmentSize - pos));
+                while (zeros.hasRemaining()) {
+                    pos += channel.write(zeros, pos);
+                }
+            }
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Force the appended bytes to disk. The segments are preallocated, so
+     * this need not write the file's metadata.
+     */
+    void force() throws IOException {
+        FileChannel channel = flush();
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Release the segments that lie wholly before offset, except the last
+     * one. Their files are closed, and kept as spares or deleted, after the
+     * segments are dropped, without holding this monitor.
+     */
+    void release(long offset) {
+        List<Segment> released = new ArrayList<>();
+        synchronized (this) {
+            while (segments.size() > 1 && (segments.firstKey() + 1) * segmentSize <= offset) {
+                released.add(segments.pollFirstEntry().getValue());
+            }
+            releasedSegments += released.size();
+        }
+        for (Segment s : released) {
+            try {
+                s.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            File spare = null;
+            synchronized (this) {
+                if (spares.size() < MAX_SPARE_SEGMENTS) {
+                    spare = new File(control.getParentFile(), control.getName() + "." + SPARE + nextSpare++);
+                }
+            }
+            if (spare != null && s.file.renameTo(spare)) {
+                synchronized (this) {
+                    spares.add(spare);
+                }
+            } else {
+                s.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Cut the log at offset, dropping everything after it. The rest of the
+     * last segment is zeroed, so that no record written before the cut
+     * can follow the records written after it.
+     */
+    synchronized void truncate(long offset) throws IOException {
+        buffer.clear();
+        while (!segments.isEmpty() && segments.lastKey() * segmentSize >= offset && segments.size() > 1) {
+            Segment s = segments.pollLastEntry().getValue();
+            s.channel.close();
+            s.file.delete();
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null) {
+            zero(last.getValue(), Math.max(0, offset - last.getKey() * segmentSize));
+        }
+        written = offset;
+        end = offset;
+    }
+
+    /**
+     * Drop the whole log, and start an empty one at offset 0. The spare
+     * files and the one being prepared are deleted too.
+     */
+    synchronized void reset() throws IOException {
+        for (Segment s : segments.values()) {
+            s.channel.close();
+            s.file.delete();
+        }
+        segments.clear();
+        File pending = takePrepared();
+        if (pending != null) {
+            pending.delete();
+        }
+        for (File spare : spares) {
+            spare.delete();
+        }
+        spares.clear();
+        buffer.clear();
+        written = 0;
+        end = 0;
+        writeControl(NO_CHECKPOINT);
+    }
+
+    synchronized void close() throws IOException {
+        flush();
+        // the prepared file stays behind as a spare
+        takePrepared();
+        for (Segment s : segments.values()) {
+            s.channel.close();
+        }
+        controlFile.close();
+    }
+
+    /**
+     * @return a stream of the log's bytes from offset up to the current
+     *         end, which are flushed first; unbuffered, so callers should
+     *         buffer it
+     */
+    synchronized InputStream reader(long offset) throws IOException {
+        flush();
+        return new Reader(offset, end);
+    }
+
+    /** Reads the segments with positional reads, so it never moves a channel. */
+    private class Reader extends InputStream {
+        private long offset;
+        private final long limit;
+
+        Reader(long offset, long limit) {
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (offset >= limit) {
+                return -1;
+            }
+            Segment s;
+            synchronized (SegmentedLog.this) {
+                s = segments.get(offset / segmentSize);
+            }
+            if (s == null) {
+                return -1;
+            }
+            long pos = offset % segmentSize;
+            int n = (int) Math.min(len, Math.min(segmentSize - pos, limit - offset));
+            int read = s.channel.read(ByteBuffer.wrap(b, off, n), pos);
+            if (read <= 0) {
+                return -1; // past the end of a short last segment
+            }
+            offset += read;
+            return read;
+        }
+    }
+}
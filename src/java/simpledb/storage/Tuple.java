@@ -1,5 +1,7 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,6 +19,14 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private RecordId recordId;
     private final Field[] fields ;
+
+    /**
+     * For tuples that are views over a page: the serialized tuple, whose
+     * fields are decoded into {@link #fields} the first time they are read.
+     */
+    private transient byte[] source;
+    private transient int sourceOffset;
+    private transient TupleDesc sourceDesc;
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -30,6 +40,25 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple that lazily decodes its fields from a serialized tuple.
+     * The caller must not modify the bytes of the tuple afterwards.
+     *
+     * @param td
+     *            the schema of this tuple, which also gives the layout of
+     *            the serialized fields
+     * @param data
+     *            the buffer the tuple was serialized into
+     * @param offset
+     *            the index of the first byte of the tuple in data
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td);
+        this.source = data;
+        this.sourceOffset = offset;
+        this.sourceDesc = td;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -78,7 +107,49 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields[i];
+        Field f = fields[i];
+        if (f == null && source != null) {
+            f = sourceDesc.getFieldType(i).parse(source, sourceOffset + sourceDesc.getFieldOffset(i));
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * @return the value of the ith field, which must be an int field; read
+     *         straight from the serialized tuple if it has not been decoded,
+     *         without creating an IntField.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        Field f = fields[i];
+        if (f == null && source != null) {
+            int o = sourceOffset + sourceDesc.getFieldOffset(i);
+            return ((source[o] & 0xff) << 24) | ((source[o + 1] & 0xff) << 16)
+                    | ((source[o + 2] & 0xff) << 8) | (source[o + 3] & 0xff);
+        }
+        return ((IntField) f).getValue();
+    }
+
+    /**
+     * Decode every field not decoded yet and drop the reference to the
+     * serialized tuple.
+     */
+    private void materialize() {
+        if (source != null) {
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+            source = null;
+            sourceDesc = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
     }
 
     /**
@@ -92,8 +163,8 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         List<String> values = new ArrayList<>(fields.length);
-        for (Field f : fields) {
-            values.add(f.toString());
+        for (int i = 0; i < fields.length; i++) {
+            values.add(getField(i).toString());
         }
         return String.join("\t", values);
     }
@@ -105,6 +176,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return Arrays.asList(fields).iterator();
     }
 
@@ -12,6 +12,7 @@ import java.util.stream.Collectors;
 public class TupleDesc implements Serializable {
 
     private final List<TDItem> list = new ArrayList<>();
+    private transient int[] offsets;
 
     public TupleDesc addTableAlias(String tableAlias) {
         TupleDesc result = new TupleDesc();
@@ -178,7 +179,38 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        return list.stream().mapToInt(d -> d.fieldType.getLen()).sum();
+        return fieldOffsets()[list.size()];
+    }
+
+    /**
+     * Gets the byte offset of the ith field within a serialized tuple of this
+     * TupleDesc.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        checkRange(i);
+        return fieldOffsets()[i];
+    }
+
+    /**
+     * Offsets are computed once, on first use: all the constructors finish
+     * filling the list before the TupleDesc is handed out.
+     */
+    private int[] fieldOffsets() {
+        int[] offsets = this.offsets;
+        if (offsets == null) {
+            offsets = new int[list.size() + 1];
+            for (int i = 0; i < list.size(); i++) {
+                offsets[i + 1] = offsets[i] + list.get(i).fieldType.getLen();
+            }
+            this.offsets = offsets;
+        }
+        return offsets;
     }
 
     private TupleDesc(){
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * The full 2Q algorithm of Johnson and Shasha. Newly loaded pages go to a
+ * small FIFO (A1in); when they are evicted from it their ids are remembered
+ * in a ghost FIFO (A1out). Only a page that is loaded again while it is
+ * still remembered enters the main LRU queue (Am). A sequential scan
+ * therefore only cycles through A1in and leaves the pages in Am alone.
+ */
+class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int kIn;
+    private final int kOut;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    /** least recently used first */
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /**
+     * @param capacity pages the policy is expected to track; A1in is sized
+     *                 to a quarter of it and A1out to half of it
+     */
+    TwoQueuePolicy(int capacity) {
+        this.kIn = Math.max(1, capacity / 4);
+        this.kOut = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void pageLoaded(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are treated as correlated references and ignored
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    @Override
+    public PageId evict(Predicate<PageId> evictable) {
+        if (a1in.size() > kIn || am.isEmpty()) {
+            PageId victim = evictFromA1in(evictable);
+            return victim != null ? victim : removeFirst(am, evictable);
+        }
+        PageId victim = removeFirst(am, evictable);
+        return victim != null ? victim : evictFromA1in(evictable);
+    }
+
+    private PageId evictFromA1in(Predicate<PageId> evictable) {
+        PageId victim = removeFirst(a1in, evictable);
+        if (victim != null) {
+            a1out.add(victim);
+            if (a1out.size() > kOut) {
+                a1out.remove(a1out.iterator().next());
+            }
+        }
+        return victim;
+    }
+
+    static PageId removeFirst(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb.storage;
+
+import simpledb.index.BTreePageId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UpdateRecord is the body of an UPDATE log record: the page that was
+ * changed and the byte ranges in which its before and after images differ.
+ * <p>
+ * It is encoded as
+ * <ul>
+ * <li> a byte page type: {@link #HEAP_PAGE}, or {@link #BTREE_PAGE} plus the
+ * category of a B+ tree page
+ * <li> the int table id and the int page number
+ * <li> an int number of ranges, then for each range its int offset, its int
+ * length, and that many bytes of the before image and of the after image
+ * </ul>
+ * Ranges separated by fewer unchanged bytes than a range header takes are
+ * merged, so an update of one tuple logs a few dozen bytes rather than two
+ * page images. Redo copies the after bytes of every range into the page, and
+ * undo the before bytes.
+ */
+class UpdateRecord {
+
+    static final byte HEAP_PAGE = 0;
+    /** B+ tree pages are tagged BTREE_PAGE + their BTreePageId category */
+    static final byte BTREE_PAGE = 1;
+
+    /** bytes written by {@link #writePageId} */
+    static final int PAGE_ID_SIZE = 1 + 4 + 4;
+    private static final int RANGE_HEADER_SIZE = 8;
+
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private UpdateRecord(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** @return the record for a change of page pid from before to after */
+    static UpdateRecord diff(PageId pid, byte[] before, byte[] after) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page images differ in size");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; // exclusive end of the last differing byte
+            for (int j = end; j < after.length && j - end < RANGE_HEADER_SIZE; j++) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            b[r] = new byte[len];
+            a[r] = new byte[len];
+            System.arraycopy(before, start, b[r], 0, len);
+            System.arraycopy(after, start, a[r], 0, len);
+        }
+        return new UpdateRecord(pid, offsets, b, a);
+    }
+
+    /** Read a record written by {@link #write}.
+
+        @throws StreamCorruptedException if the bytes cannot be one, as
+        when they are stale bytes past the end of the log
+    */
+    static UpdateRecord read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageSize = BufferPool.getPageSize();
+        int n = in.readInt();
+        if (n < 0 || n > pageSize) {
+            throw new StreamCorruptedException("bad number of byte ranges " + n);
+        }
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (offsets[r] < 0 || len < 0 || len > pageSize - offsets[r]) {
+                throw new StreamCorruptedException("bad byte range " + offsets[r] + "+" + len);
+            }
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new UpdateRecord(pid, offsets, before, after);
+    }
+
+    /** Write the record in one call to out. */
+    void write(DataOutput out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size());
+        DataOutputStream data = new DataOutputStream(bytes);
+        writePageId(data, pid);
+        data.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            data.writeInt(offsets[r]);
+            data.writeInt(before[r].length);
+            data.write(before[r]);
+            data.write(after[r]);
+        }
+        out.write(bytes.toByteArray());
+    }
+
+    /** @return the number of bytes {@link #write} writes */
+    int size() {
+        int size = PAGE_ID_SIZE + 4;
+        for (byte[] b : before) {
+            size += RANGE_HEADER_SIZE + 2 * b.length;
+        }
+        return size;
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the page type tag of the page */
+    byte getPageType() {
+        return pageType(pid);
+    }
+
+    int getRanges() {
+        return offsets.length;
+    }
+
+    /** Apply the change to the data of the page. */
+    void redo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(after[r], 0, page, offsets[r], after[r].length);
+        }
+    }
+
+    /** Revert the change in the data of the page. */
+    void undo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(before[r], 0, page, offsets[r], before[r].length);
+        }
+    }
+
+    /** Write pid as its page type tag, table id and page number. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeByte(pageType(pid));
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+    }
+
+    /** Read a page id written by {@link #writePageId}. */
+    static PageId readPageId(DataInput in) throws IOException {
+        byte type = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        return pageId(type, tableId, pgNo);
+    }
+
+    private static byte pageType(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP_PAGE;
+        }
+        if (pid instanceof BTreePageId) {
+            return (byte) (BTREE_PAGE + ((BTreePageId) pid).pgcateg());
+        }
+        throw new IllegalArgumentException("cannot log pages of " + pid.getClass().getName());
+    }
+
+    private static PageId pageId(byte type, int tableId, int pgNo) throws IOException {
+        if (type == HEAP_PAGE) {
+            return new HeapPageId(tableId, pgNo);
+        }
+        int category = type - BTREE_PAGE;
+        if (category < BTreePageId.ROOT_PTR || category > BTreePageId.HEADER) {
+            throw new StreamCorruptedException("unknown page type " + type + " in log");
+        }
+        return new BTreePageId(tableId, pgNo, category);
+    }
+}
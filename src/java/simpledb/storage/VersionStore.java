@@ -0,0 +1,175 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * VersionStore keeps the committed page images that snapshot transactions
+ * of a BufferPool may still need.
+ * <p>
+ * Commits are numbered by a logical clock, and a snapshot reads as of the
+ * clock value at its start. When a transaction commits while snapshots are
+ * open, the before image of every page it changed, i.e. the version that
+ * was current until that commit, is kept under the commit's timestamp. A
+ * snapshot taken at ts reads, for each page, the image kept by the first
+ * commit after ts, or the page's current committed image if there is none.
+ * Images are collected as soon as the oldest open snapshot no longer
+ * precedes their commit.
+ * <p>
+ * A page written to disk by a transaction that has not finished holds
+ * uncommitted data there, and once evicted it is read back with that data
+ * as its committed image. Its committed image is therefore retained when
+ * it is written, and read in place of the page's until the transaction
+ * finishes.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** The image of a page before the commit at commitTs. */
+    private static class Version {
+        final long commitTs;
+        final PageId pid;
+        final Page image;
+
+        Version(long commitTs, PageId pid, Page image) {
+            this.commitTs = commitTs;
+            this.pid = pid;
+            this.image = image;
+        }
+    }
+
+    private long clock = 0;
+    /** the start timestamps of the open snapshots, with their counts */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    /** the versions of each page, oldest first */
+    private final Map<PageId, ArrayDeque<Version>> chains = new HashMap<>();
+    /** all versions, oldest first */
+    private final ArrayDeque<Version> byAge = new ArrayDeque<>();
+    /** the committed images of pages written by unfinished transactions */
+    private final Map<PageId, Page> retained = new HashMap<>();
+
+    private long collected = 0;
+    private long versionReads = 0;
+
+    /** @return the timestamp of a new snapshot */
+    synchronized long beginSnapshot() {
+        snapshots.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /** Close the snapshot taken at ts, and collect what it kept alive. */
+    synchronized void endSnapshot(long ts) {
+        snapshots.computeIfPresent(ts, (k, n) -> n == 1 ? null : n - 1);
+        collect();
+    }
+
+    /**
+     * Keep the committed image of a page that is about to be written to
+     * disk with changes of a transaction that has not finished.
+     */
+    synchronized void retain(Page page) {
+        retained.putIfAbsent(page.getId(), page.getBeforeImage());
+    }
+
+    /**
+     * Drop the images retained for pages of an aborted transaction, whose
+     * committed images are back on disk.
+     */
+    synchronized void release(Collection<PageId> pids) {
+        for (PageId pid : pids) {
+            retained.remove(pid);
+        }
+    }
+
+    /**
+     * Make the changes of a committing transaction the current committed
+     * images of its pages, keeping the previous ones if a snapshot is open.
+     * The new images are set under this monitor, so a snapshot sees either
+     * all of the commit or none of it.
+     *
+     * @param pages the cached pages the transaction changed
+     * @param written the pages the transaction wrote to disk before it
+     *                committed, whose previous images were retained; may
+     *                be null
+     */
+    synchronized void publish(List<Page> pages, Collection<PageId> written) {
+        long ts = ++clock;
+        Map<PageId, Page> previous = new HashMap<>();
+        for (Page p : pages) {
+            previous.put(p.getId(), p.getBeforeImage());
+        }
+        if (written != null) {
+            for (PageId pid : written) {
+                Page image = retained.remove(pid);
+                if (image != null) {
+                    previous.put(pid, image);
+                }
+            }
+        }
+        if (!snapshots.isEmpty()) {
+            for (Map.Entry<PageId, Page> e : previous.entrySet()) {
+                Version v = new Version(ts, e.getKey(), e.getValue());
+                chains.computeIfAbsent(v.pid, k -> new ArrayDeque<>()).addLast(v);
+                byAge.addLast(v);
+            }
+        }
+        for (Page p : pages) {
+            p.setBeforeImage();
+        }
+    }
+
+    /**
+     * @return the image of pid as of snapshot ts if a later commit changed
+     *         the page or it was written uncommitted, or null if its
+     *         current committed image is the one
+     */
+    synchronized Page versionAsOf(PageId pid, long ts) {
+        ArrayDeque<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.commitTs > ts) {
+                    versionReads++;
+                    return v.image;
+                }
+            }
+        }
+        Page image = retained.get(pid);
+        if (image != null) {
+            versionReads++;
+        }
+        return image;
+    }
+
+    private void collect() {
+        long oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        while (!byAge.isEmpty() && byAge.peekFirst().commitTs <= oldest) {
+            Version v = byAge.removeFirst();
+            ArrayDeque<Version> chain = chains.get(v.pid);
+            chain.removeFirst();
+            if (chain.isEmpty()) {
+                chains.remove(v.pid);
+            }
+            collected++;
+        }
+    }
+
+    /** @return the number of page versions currently kept */
+    synchronized int getVersions() {
+        return byAge.size();
+    }
+
+    /** @return the number of page versions collected so far */
+    synchronized long getCollected() {
+        return collected;
+    }
+
+    /** @return the number of snapshot reads served from a kept version */
+    synchronized long getVersionReads() {
+        return versionReads;
+    }
+}
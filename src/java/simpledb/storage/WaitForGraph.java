@@ -0,0 +1,103 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * WaitForGraph records, for every transaction blocked in the LockManager,
+ * the transactions whose locks it waits for. The graph is updated as
+ * transactions block and stop waiting, and a cycle can only be closed by
+ * the edges of a transaction that just blocked, so the LockManager looks for
+ * a cycle through that transaction only. The youngest transaction of a cycle
+ * is chosen as its victim.
+ *
+ * @Threadsafe
+ */
+class WaitForGraph {
+
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    /** the monitor each blocked transaction waits on */
+    private final Map<TransactionId, Object> monitors = new HashMap<>();
+    private final Set<TransactionId> victims = new HashSet<>();
+
+    /**
+     * Record that tid waits on monitor for the given transactions.
+     *
+     * @return true if tid's edges changed, so a new cycle may have formed
+     */
+    synchronized boolean setWaiting(TransactionId tid, Set<TransactionId> blockers, Object monitor) {
+        monitors.put(tid, monitor);
+        Set<TransactionId> old = waitsFor.put(tid, blockers);
+        return !blockers.equals(old);
+    }
+
+    /** Remove tid and its edges from the graph. */
+    synchronized void stopWaiting(TransactionId tid) {
+        waitsFor.remove(tid);
+        monitors.remove(tid);
+        victims.remove(tid);
+    }
+
+    /** @return true if tid was chosen as the victim of a deadlock */
+    synchronized boolean isVictim(TransactionId tid) {
+        return victims.contains(tid);
+    }
+
+    /**
+     * Look for a cycle through tid, and if there is one, mark its youngest
+     * transaction as the victim.
+     *
+     * @return the victim, or null if tid is not deadlocked
+     */
+    synchronized TransactionId chooseVictim(TransactionId tid) {
+        List<TransactionId> cycle = cycleThrough(tid, tid, new ArrayList<>(), new HashSet<>());
+        if (cycle == null) {
+            return null;
+        }
+        TransactionId victim = tid;
+        for (TransactionId t : cycle) {
+            if (t.getId() > victim.getId()) {
+                victim = t;
+            }
+        }
+        victims.add(victim);
+        return victim;
+    }
+
+    /** @return the monitor tid waits on, or null if it is not blocked */
+    synchronized Object monitorOf(TransactionId tid) {
+        return monitors.get(tid);
+    }
+
+    /**
+     * Depth-first search for a path from t back to start.
+     *
+     * @return the transactions on the path, or null if there is none
+     */
+    private List<TransactionId> cycleThrough(TransactionId start, TransactionId t,
+                                             List<TransactionId> path, Set<TransactionId> visited) {
+        path.add(t);
+        visited.add(t);
+        for (TransactionId next : waitsFor.getOrDefault(t, Collections.emptySet())) {
+            if (next.equals(start)) {
+                return path;
+            }
+            // a transaction already chosen as victim is about to abort
+            if (!visited.contains(next) && !victims.contains(next)) {
+                List<TransactionId> cycle = cycleThrough(start, next, path, visited);
+                if (cycle != null) {
+                    return cycle;
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+}
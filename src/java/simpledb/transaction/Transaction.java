@@ -7,19 +7,36 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A snapshot transaction is read-only: it takes no locks, so it neither
+ * blocks nor waits for writers, and reads the database as it was committed
+ * when the transaction started. It writes no log records.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean snapshot;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param snapshot true for a read-only snapshot transaction
+     */
+    public Transaction(boolean snapshot) {
         tid = new TransactionId();
+        this.snapshot = snapshot;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (snapshot) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,6 +48,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,7 +65,11 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot) {
+            // nothing to log or roll back; this closes the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.BatchAdapter;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IntegerAggregator;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleBatch;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for batch-at-a-time execution: every operator returns the same
+ * tuples through nextBatch() as through next(), calls to both may be mixed,
+ * and the adapters let tuple and batch operators compose.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int MAX_VALUE = 64;
+
+    private TransactionId tid;
+    private HeapFile left;
+    private HeapFile right;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        left = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, new ArrayList<>());
+        right = SystemTestUtil.createRandomHeapFile(2, 200, MAX_VALUE, null, new ArrayList<>());
+    }
+
+    private static List<Integer> values(Tuple t) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            values.add(((IntField) t.getField(i)).getValue());
+        }
+        return values;
+    }
+
+    /** @return the tuples of it, read with next() */
+    private static List<List<Integer>> byTuple(OpIterator it) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(values(it.next()));
+        }
+        it.close();
+        return tuples;
+    }
+
+    /** @return the tuples of it, read with nextBatch() */
+    private static List<List<Integer>> byBatch(OpIterator it, int size) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        it.open();
+        TupleBatch batch;
+        while ((batch = it.nextBatch(size)) != null) {
+            assertTrue(batch.size() > 0 && batch.size() <= size);
+            for (int row = 0; row < batch.size(); row++) {
+                tuples.add(values(batch.getTuple(row)));
+            }
+        }
+        it.close();
+        return tuples;
+    }
+
+    private SeqScan scan(HeapFile f) {
+        return new SeqScan(tid, f.getId());
+    }
+
+    private Filter filter(OpIterator child) {
+        return new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 4)), child);
+    }
+
+    private HashEquiJoin join() {
+        return new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0), scan(left), scan(right));
+    }
+
+    @Test public void seqScan() throws Exception {
+        List<List<Integer>> expected = byTuple(scan(left));
+        assertEquals(ROWS, expected.size());
+        assertEquals(expected, byBatch(scan(left), 100));
+        assertEquals(expected, byBatch(scan(left), TupleBatch.DEFAULT_SIZE));
+    }
+
+    @Test public void filter() throws Exception {
+        List<List<Integer>> expected = byTuple(filter(scan(left)));
+        assertTrue(expected.size() > 0 && expected.size() < ROWS);
+        assertEquals(expected, byBatch(filter(scan(left)), 100));
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(2, op, new IntField(MAX_VALUE / 2));
+            assertEquals(op.toString(), byTuple(new Filter(p, scan(left))), byBatch(new Filter(p, scan(left)), 77));
+        }
+    }
+
+    @Test public void project() throws Exception {
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        List<Integer> fields = Arrays.asList(2, 0);
+        List<List<Integer>> expected = byTuple(new Project(fields, types, filter(scan(left))));
+        assertEquals(expected, byBatch(new Project(fields, types, filter(scan(left))), 100));
+    }
+
+    @Test public void hashEquiJoin() throws Exception {
+        List<List<Integer>> expected = byTuple(join());
+        assertTrue(expected.size() > ROWS);
+        assertEquals(expected, byBatch(join(), 100));
+
+        // rewinding starts over
+        HashEquiJoin j = join();
+        j.open();
+        j.nextBatch(10);
+        j.rewind();
+        List<List<Integer>> rewound = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = j.nextBatch(1000)) != null) {
+            for (int row = 0; row < batch.size(); row++) {
+                rewound.add(values(batch.getTuple(row)));
+            }
+        }
+        j.close();
+        assertEquals(expected, rewound);
+    }
+
+    @Test public void aggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            for (int group : new int[]{Aggregator.NO_GROUPING, 1}) {
+                // the tuple-at-a-time merge of the same rows
+                IntegerAggregator expected = new IntegerAggregator(group, group == -1 ? null : Type.INT_TYPE, 2, op);
+                OpIterator rows = scan(left);
+                rows.open();
+                while (rows.hasNext()) {
+                    expected.mergeTupleIntoGroup(rows.next());
+                }
+                rows.close();
+                Map<Integer, Integer> groups = groups(expected.iterator(), false);
+                assertEquals(op + " by " + group, groups, groups(new Aggregate(scan(left), 2, group, op), false));
+                assertEquals(op + " by " + group, groups, groups(new Aggregate(scan(left), 2, group, op), true));
+            }
+        }
+    }
+
+    /** @return the aggregate values by group, read with next() or nextBatch() */
+    private static Map<Integer, Integer> groups(OpIterator a, boolean batches) throws Exception {
+        Map<Integer, Integer> groups = new HashMap<>();
+        for (List<Integer> t : batches ? byBatch(a, 10) : byTuple(a)) {
+            groups.put(t.size() == 1 ? -1 : t.get(0), t.get(t.size() - 1));
+        }
+        return groups;
+    }
+
+    /**
+     * next() and nextBatch() may be mixed, and each tuple is returned once.
+     */
+    @Test public void mixedCalls() throws Exception {
+        List<List<Integer>> expected = byTuple(join());
+        HashEquiJoin j = join();
+        List<List<Integer>> mixed = new ArrayList<>();
+        j.open();
+        boolean batch = false;
+        while (j.hasNext()) {
+            if (batch) {
+                TupleBatch b = j.nextBatch(37);
+                for (int row = 0; row < b.size(); row++) {
+                    mixed.add(values(b.getTuple(row)));
+                }
+            } else {
+                mixed.add(values(j.next()));
+            }
+            batch = !batch;
+        }
+        assertNull(j.nextBatch(10));
+        j.close();
+        assertEquals(expected, mixed);
+    }
+
+    /**
+     * A tuple-at-a-time operator reads a batch operator through a
+     * BatchAdapter, and a batch reader reads a tuple-at-a-time operator
+     * through the default nextBatch().
+     */
+    @Test public void adapters() throws Exception {
+        List<List<Integer>> expected = byTuple(filter(scan(left)));
+        assertEquals(expected, byTuple(new BatchAdapter(filter(scan(left)), 50)));
+        assertEquals(expected, byBatch(new BatchAdapter(filter(scan(left)), 50), 64));
+
+        OrderBy sorted = new OrderBy(0, true, new BatchAdapter(filter(scan(left))));
+        List<List<Integer>> viaBatches = byBatch(filter(sorted), 100);
+        assertEquals(expected.size(), viaBatches.size());
+        for (int i = 1; i < viaBatches.size(); i++) {
+            assertTrue(viaBatches.get(i - 1).get(0) <= viaBatches.get(i).get(0));
+        }
+    }
+
+    /**
+     * Prints the time of a filter over a scan and of a hash join, a tuple
+     * and a batch at a time.
+     */
+    @Test public void batchTime() throws Exception {
+        left = SystemTestUtil.createRandomHeapFile(3, 200000, MAX_VALUE, null, null);
+        for (boolean batches : new boolean[]{false, true, false, true}) {
+            long start = System.nanoTime();
+            int filtered = count(filter(scan(left)), batches);
+            double filterMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            int joined = count(join(), batches);
+            double joinMillis = (System.nanoTime() - start) / 1e6;
+            assertEquals(count(filter(scan(left)), !batches), filtered);
+            System.out.printf("BatchExecutionTest: %s at a time: filter %.1f ms, join of %d rows %.1f ms%n",
+                    batches ? "batch" : "tuple", filterMillis, joined, joinMillis);
+        }
+    }
+
+    private static int count(OpIterator it, boolean batches) throws Exception {
+        int count = 0;
+        it.open();
+        if (batches) {
+            TupleBatch batch;
+            while ((batch = it.nextBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+                count += batch.size();
+            }
+        } else {
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageHandle;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded tests for BufferPool.getPage(). Besides checking that
+ * concurrent lookups and evictions return consistent pages, the throughput
+ * of cached lookups is printed for increasing thread counts.
+ */
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 64;
+    private static final int LOOKUPS_PER_THREAD = 200000;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, hf.numPages());
+    }
+
+    /**
+     * Every thread looks up random pages of a table that fits in the pool;
+     * all of them must see the very page objects cached by the warm up.
+     */
+    @Test public void concurrentHits() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES * 2);
+        TransactionId tid = new TransactionId();
+        Page[] cached = new Page[TABLE_PAGES];
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            cached[i] = bp.getPage(tid, new HeapPageId(hf.getId(), i), null);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            long start = System.nanoTime();
+            runThreads(threads, seed -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                    int pgNo = r.nextInt(TABLE_PAGES);
+                    Page p = bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), null);
+                    assertSame(cached[pgNo], p);
+                }
+            });
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("BufferPoolConcurrencyTest: %d threads, %.0f getPage hits/sec%n",
+                    threads, threads * LOOKUPS_PER_THREAD / secs);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Threads scan a table twice the size of the pool, so lookups keep
+     * missing and evicting pages owned by other shards.
+     */
+    @Test public void concurrentMissesAndEvictions() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES / 2);
+        TransactionId tid = new TransactionId();
+        runThreads(8, seed -> {
+            Random r = new Random(seed);
+            for (int i = 0; i < 2000; i++) {
+                int pgNo = r.nextInt(TABLE_PAGES);
+                Page p = bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), null);
+                assertEquals(pgNo, p.getId().getPageNumber());
+            }
+        });
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A thread reading a page from disk does not keep other threads from
+     * pages of the same shard, and threads asking for the page it reads
+     * wait for that read instead of reading the page again.
+     */
+    @Test(timeout = 20000) public void missDoesNotBlockShard() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        HeapFile slow = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                if (pid.getPageNumber() == 0) {
+                    reads.incrementAndGet();
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES * 2);
+        TransactionId tid = new TransactionId();
+        AtomicReference<Page> first = new AtomicReference<>();
+        AtomicReference<Page> second = new AtomicReference<>();
+        Thread t1 = new Thread(() -> first.set(getQuietly(bp, tid, new HeapPageId(slow.getId(), 0))));
+        t1.start();
+        reading.await();
+        Thread t2 = new Thread(() -> second.set(getQuietly(bp, tid, new HeapPageId(slow.getId(), 0))));
+        t2.start();
+        for (int i = 1; i < TABLE_PAGES; i++) {
+            assertEquals(i, bp.getPage(tid, new HeapPageId(slow.getId(), i), null).getId().getPageNumber());
+        }
+        release.countDown();
+        t1.join();
+        t2.join();
+        assertNotNull(first.get());
+        assertSame(first.get(), second.get());
+        assertEquals(1, reads.get());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * An eviction that has to write its victim does so without holding the
+     * shard's monitor: other pages of the shard stay available meanwhile,
+     * and threads asking for the victim wait for the write and read it back.
+     */
+    @Test(timeout = 20000) public void dirtyEvictionDoesNotBlockShard() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HeapFile slow = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                if (page.getId().getPageNumber() == 0) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.writePage(page);
+            }
+        };
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool bp = Database.resetBufferPool(2);
+        // with the cleaner running, commit leaves the page dirty
+        bp.startPageCleaner(3600 * 1000);
+        try {
+            TransactionId writer = new TransactionId();
+            HeapPage victim = (HeapPage) bp.getPage(writer, new HeapPageId(slow.getId(), 0), Permissions.READ_WRITE);
+            bp.deleteTuple(writer, victim.iterator().next());
+            bp.transactionComplete(writer, true);
+
+            TransactionId tid = new TransactionId();
+            try (PageHandle pinned = bp.getPinnedPage(tid, new HeapPageId(slow.getId(), 1), Permissions.READ_ONLY)) {
+                Thread evictor = new Thread(() -> getQuietly(bp, tid, new HeapPageId(slow.getId(), 2)));
+                evictor.start();
+                writing.await();
+                assertSame(pinned.getPage(), bp.getPage(tid, new HeapPageId(slow.getId(), 1), null));
+                AtomicReference<Page> reread = new AtomicReference<>();
+                Thread reader = new Thread(() -> reread.set(getQuietly(bp, tid, new HeapPageId(slow.getId(), 0))));
+                reader.start();
+                release.countDown();
+                evictor.join();
+                reader.join();
+                assertEquals(1, ((HeapPage) reread.get()).getNumEmptySlots());
+            }
+            assertEquals(1, bp.getDirtyEvictions());
+            bp.transactionComplete(tid);
+        } finally {
+            bp.stopPageCleaner();
+        }
+    }
+
+    private static Page getQuietly(BufferPool bp, TransactionId tid, PageId pid) {
+        try {
+            return bp.getPage(tid, pid, null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    interface Worker {
+        void run(long seed) throws Exception;
+    }
+
+    private static void runThreads(int count, Worker worker) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long seed = i;
+            threads.add(new Thread(() -> {
+                try {
+                    worker.run(seed);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for fuzzy checkpoints. Commits run NO-FORCE, with a page cleaner
+ * that never gets to run, so the checkpoint has dirty committed pages to
+ * write.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().startPageCleaner(TimeUnit.HOURS.toMillis(1));
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().stopPageCleaner();
+    }
+
+    private void insert(Transaction t, int value, int rows) throws Exception {
+        for (int i = 0; i < rows; i++) {
+            Tuple tup = new Tuple(hf.getTupleDesc());
+            tup.setField(0, new IntField(value));
+            tup.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+    }
+
+    private void commit(int value, int rows) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, value, rows);
+        t.commit();
+    }
+
+    /** @return the number of rows with the given value */
+    private int count(int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == value) {
+                count++;
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private void crashAndRecover() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A checkpoint writes the committed pages commits left dirty.
+     */
+    @Test public void writesDirtyPages() throws Exception {
+        commit(1, 1000);
+        assertTrue(((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots() > 0);
+
+        LogFile log = Database.getLogFile();
+        log.logCheckpoint();
+        assertEquals(1, log.getCheckpoints());
+        assertEquals(2, log.getCheckpointPages());
+        assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+    }
+
+    /**
+     * A checkpoint does not need the BufferPool's monitor, so it completes
+     * while another thread holds it.
+     */
+    @Test public void doesNotFreezePool() throws Exception {
+        commit(1, 600);
+        BufferPool pool = Database.getBufferPool();
+        ExecutorService checkpointer = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (pool) {
+                Future<?> done = checkpointer.submit(() -> {
+                    Database.getLogFile().logCheckpoint();
+                    return null;
+                });
+                done.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            checkpointer.shutdownNow();
+        }
+        assertEquals(1, Database.getLogFile().getCheckpoints());
+    }
+
+    /**
+     * A page that an unfinished transaction dirtied after a commit left it
+     * dirty is written as committed; after a crash the commit survives and
+     * the unfinished transaction does not.
+     */
+    @Test public void redirtiedPageKeepsCommit() throws Exception {
+        commit(1, 100);
+        Transaction open = new Transaction();
+        open.start();
+        insert(open, 2, 100);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, Database.getLogFile().getCheckpoints());
+
+        crashAndRecover();
+        assertEquals(100, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Checkpoints, which look up dirty pages under the log's monitor, run
+     * alongside flushAllPages of pages an unfinished transaction keeps
+     * dirtying, which logs those updates.
+     */
+    @Test(timeout = 60000) public void checkpointDuringFlush() throws Exception {
+        commit(1, 600);
+        Transaction open = new Transaction();
+        open.start();
+        ExecutorService flusher = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> flushes = flusher.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    insert(open, 2, 1);
+                    Database.getBufferPool().flushAllPages();
+                }
+                return null;
+            });
+            LogFile log = Database.getLogFile();
+            while (!flushes.isDone()) {
+                log.logCheckpoint();
+            }
+            flushes.get();
+        } finally {
+            flusher.shutdownNow();
+        }
+        open.commit();
+        assertEquals(600, count(1));
+        assertEquals(200, count(2));
+    }
+
+    /**
+     * Prints the slowest commit of a stream of small transactions while a
+     * checkpoint writes many dirty pages.
+     */
+    @Test public void commitLatencyDuringCheckpoint() throws Exception {
+        Database.getBufferPool().stopPageCleaner();
+        Database.resetBufferPool(2000);
+        Database.getBufferPool().startPageCleaner(TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < 10; i++) {
+            commit(1, 504 * 20);
+        }
+        LogFile log = Database.getLogFile();
+        long start = System.nanoTime();
+        log.beginCheckpoint();
+        long slowest = 0;
+        int commits = 0;
+        while (log.getCheckpoints() == 0 && commits < 10000) {
+            long t = System.nanoTime();
+            commit(2, 1);
+            slowest = Math.max(slowest, System.nanoTime() - t);
+            commits++;
+        }
+        log.awaitCheckpoint();
+        System.out.printf("CheckpointTest: checkpoint of %d pages took %.1f ms; %d commits meanwhile, slowest %.2f ms%n",
+                log.getCheckpointPages(), (System.nanoTime() - start) / 1e6, commits, slowest / 1e6);
+        assertEquals(commits, count(2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.DbException;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleBatch;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that HashEquiJoin spills the partitions that do not fit in its
+ * memory budget, joins them from disk, and reads each child once, with int
+ * and string join keys.
+ */
+public class GraceHashJoinTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 500;
+
+    private TransactionId tid;
+    private HeapFile left;
+    private HeapFile right;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        left = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, new ArrayList<>());
+        right = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, new ArrayList<>());
+    }
+
+    /** Counts the opens, rewinds and tuples read of a child. */
+    private static class Counting implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final OpIterator child;
+        int opens = 0;
+        int rewinds = 0;
+        int tuples = 0;
+
+        Counting(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            opens++;
+            child.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            tuples++;
+            return child.next();
+        }
+
+        public TupleBatch nextBatch(int maxSize) throws DbException, TransactionAbortedException {
+            TupleBatch batch = child.nextBatch(maxSize);
+            if (batch != null) {
+                tuples += batch.size();
+            }
+            return batch;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            rewinds++;
+            child.rewind();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            child.close();
+        }
+    }
+
+    private static List<String> tuples(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next().toString());
+        }
+        it.close();
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    private static int spillFiles() {
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list(
+                (dir, name) -> name.startsWith("simpledb-spill"));
+        return files == null ? 0 : files.length;
+    }
+
+    private JoinPredicate pred() {
+        return new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    }
+
+    @Test public void fitsInMemory() throws Exception {
+        HashEquiJoin j = new HashEquiJoin(pred(), new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()));
+        List<String> expected = tuples(new Join(pred(), new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId())));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, tuples(j));
+        assertEquals(0, j.getSpilledPartitions());
+    }
+
+    @Test public void spills() throws Exception {
+        List<String> expected = tuples(new Join(pred(), new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId())));
+        int before = spillFiles();
+        // some, all, and all partitions in several chunks
+        for (long budget : new long[]{ROWS * 50L, 1, 16 << 10}) {
+            Counting c1 = new Counting(new SeqScan(tid, left.getId()));
+            Counting c2 = new Counting(new SeqScan(tid, right.getId()));
+            HashEquiJoin j = new HashEquiJoin(pred(), c1, c2);
+            j.setMemoryBudget(budget);
+            assertEquals("budget " + budget, expected, tuples(j));
+            assertTrue(j.getSpilledPartitions() > 0);
+            if (budget == 1) {
+                assertEquals(HashEquiJoin.PARTITIONS, j.getSpilledPartitions());
+            }
+            assertEquals(1, c1.opens);
+            assertEquals(1, c2.opens);
+            assertEquals(0, c1.rewinds + c2.rewinds);
+            assertEquals(ROWS, c1.tuples);
+            assertEquals(ROWS, c2.tuples);
+            assertEquals(before, spillFiles());
+        }
+    }
+
+    /**
+     * Int keys of any value, and string keys, which use the generic tables,
+     * join the same in memory and spilled.
+     */
+    @Test public void keyTypes() throws Exception {
+        Random random = new Random(7);
+        int[] special = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+        Object[] ints = new Object[2 * 2000];
+        Object[] strings = new Object[2 * 2000];
+        for (int i = 0; i < 2000; i++) {
+            int key = i % 3 == 0 ? special[random.nextInt(special.length)] : random.nextInt(300) - 150;
+            ints[2 * i] = key;
+            ints[2 * i + 1] = i;
+            strings[2 * i] = "key" + key;
+            strings[2 * i + 1] = i;
+        }
+        for (Object[] data : new Object[][]{ints, strings}) {
+            JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+            List<String> expected = tuples(new Join(p, TestUtil.createTupleList(2, data),
+                    TestUtil.createTupleList(2, data)));
+            for (long budget : new long[]{HashEquiJoin.DEFAULT_MEMORY_BUDGET, 1, 20 << 10}) {
+                HashEquiJoin j = new HashEquiJoin(p, TestUtil.createTupleList(2, data),
+                        TestUtil.createTupleList(2, data));
+                j.setMemoryBudget(budget);
+                assertEquals(expected, tuples(j));
+            }
+        }
+    }
+
+    @Test public void rewind() throws Exception {
+        HashEquiJoin j = new HashEquiJoin(pred(), new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()));
+        j.setMemoryBudget(ROWS * 20L);
+        List<String> expected = tuples(j);
+        int before = spillFiles();
+        j.open();
+        for (int i = 0; i < 10 && j.hasNext(); i++) {
+            j.next();
+        }
+        j.rewind();
+        List<String> rewound = new ArrayList<>();
+        while (j.hasNext()) {
+            rewound.add(j.next().toString());
+        }
+        j.close();
+        Collections.sort(rewound);
+        assertEquals(expected, rewound);
+        assertEquals(before, spillFiles());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GraceHashJoinTest.class);
+    }
+}
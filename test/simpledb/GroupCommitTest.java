@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for group commit in LogFile.logCommit(). Besides checking that
+ * concurrent commits share forces, the commit throughput is printed for
+ * increasing thread counts.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int COMMITS_PER_THREAD = 200;
+
+    private File logFile;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        logFile = File.createTempFile("grouplog", ".dat");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile, LOG_SEGMENT_SIZE);
+    }
+
+    @After public void tearDown() {
+        log.shutdown();
+        TestUtil.deleteLog(logFile);
+    }
+
+    /** Run COMMITS_PER_THREAD transactions in each of threads threads. */
+    private void commitInThreads(int threads) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                try {
+                    for (int i = 0; i < COMMITS_PER_THREAD; i++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    /**
+     * A single committer forces the log once per commit.
+     */
+    @Test public void singleCommitterForcesEachCommit() throws Exception {
+        commitInThreads(1);
+        assertEquals(COMMITS_PER_THREAD, log.getCommits());
+        assertEquals(COMMITS_PER_THREAD, log.getCommitForces());
+    }
+
+    /**
+     * With a window, concurrent committers share forces.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        log.setGroupCommitWindow(1000);
+        commitInThreads(8);
+        assertEquals(8 * COMMITS_PER_THREAD, log.getCommits());
+        assertTrue(log.getCommitForces() < log.getCommits());
+    }
+
+    /**
+     * Prints commits per second, and commits per force, as the number of
+     * committing threads rises.
+     */
+    @Test public void commitThroughput() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(16, cores); threads *= 2) {
+            long commits = log.getCommits();
+            long forces = log.getCommitForces();
+            long start = System.nanoTime();
+            commitInThreads(threads);
+            double secs = (System.nanoTime() - start) / 1e9;
+            commits = log.getCommits() - commits;
+            forces = log.getCommitForces() - forces;
+            assertEquals(threads * COMMITS_PER_THREAD, commits);
+            System.out.printf("GroupCommitTest: %2d threads: %8.0f commits/s, %5.2f commits per force%n",
+                    threads, commits / secs, (double) commits / forces);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
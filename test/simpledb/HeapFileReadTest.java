@@ -1,12 +1,15 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -81,6 +84,77 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() after HeapFile.close(): the channel
+     * should transparently reopen.
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] before = hf.readPage(pid).getPageData();
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+
+        assertArrayEquals(before, page.getPageData());
+        assertEquals(484, page.getNumEmptySlots());
+    }
+
+    /**
+     * HeapFile.close() waits for the page writes in flight instead of
+     * failing them.
+     */
+    @Test(timeout = 60000)
+    public void closeDuringWrites() throws Exception {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        hf.writePage(page);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            writers.add(t);
+            t.start();
+        }
+        for (int i = 0; i < 2000 && error.get() == null; i++) {
+            hf.writePage(page); // reopens the channel
+            hf.close();
+        }
+        done.set(true);
+        for (Thread t : writers) {
+            t.join();
+        }
+        assertNull(error.get());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() on a memory mapped HeapFile, including
+     * pages written after the file was first mapped.
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        assertArrayEquals(expected, mapped.readPage(pid).getPageData());
+
+        // growing the file must be visible through the mapping
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        assertEquals(504, ((HeapPage) mapped.readPage(pid1)).getNumEmptySlots());
+        hf.writePage(new HeapPage(pid1, expected));
+        HeapPage page = (HeapPage) mapped.readPage(pid1);
+        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(2, mapped.numPages());
+        mapped.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -125,6 +199,34 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator() over a table larger than the buffer
+     * pool: the scan must leave cached pages alone, yet see the dirty ones.
+     */
+    @Test
+    public void testIteratorScanRing() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        Page hot = bp.getPage(tid, new HeapPageId(hf.getId(), 0), null);
+        HeapPage dirty = (HeapPage) bp.getPage(tid, new HeapPageId(big.getId(), 7), Permissions.READ_WRITE);
+        dirty.deleteTuple(dirty.iterator().next());
+        dirty.markDirty(true, tid);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+
+        assertEquals(504 * 40 - 1, count);
+        assertEquals(40, big.numPages());
+        assertSame(hot, bp.getPage(tid, new HeapPageId(hf.getId(), 0), null));
+        assertSame(dirty, bp.getPage(tid, new HeapPageId(big.getId(), 7), null));
+    }
+
     /**
      * JUnit suite target
      */
@@ -13,6 +13,7 @@ import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +51,58 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() with the free space map: inserts
+     * go to the first page that has room, and the map survives close().
+     */
+    @Test public void addTupleUsesFreeSpaceMap() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 504 * 2; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(2, fsm.nextPageWithSpace(0));
+
+        // free a slot on the first page; the next insert should go there
+        empty.deleteTuple(tid, first);
+        assertEquals(0, fsm.nextPageWithSpace(0));
+        List<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(-1, 2));
+        assertEquals(0, dirty.get(0).getId().getPageNumber());
+        assertEquals(2, empty.numPages());
+
+        empty.close();
+        assertEquals(2, new FreeSpaceMap(empty.getFile()).nextPageWithSpace(0));
+    }
+
+    /**
+     * A persisted map is used once: after it is loaded, a crash leaves no
+     * map to trust, whatever happens to the pages meanwhile.
+     */
+    @Test public void loadedMapIsNotTrustedAfterCrash() throws Exception {
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        empty.close();
+        assertEquals(1, new FreeSpaceMap(empty.getFile()).nextPageWithSpace(0));
+        // the map loaded above was never closed, as in a crash
+        assertEquals(0, new FreeSpaceMap(empty.getFile()).nextPageWithSpace(0));
+    }
+
+    /**
+     * An aborted insert that filled a page leaves the page offered again.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(writer, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertNotEquals(0, fsm.nextPageWithSpace(0));
+        Database.getBufferPool().transactionComplete(writer, false);
+        assertEquals(0, fsm.nextPageWithSpace(0));
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
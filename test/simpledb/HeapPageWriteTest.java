@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -14,6 +15,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +133,60 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(): tuples handed out before an update
+     * keep their values, and the source data passed in is never modified.
+     */
+    @Test public void iteratorViewsSurviveUpdates() throws Exception {
+        byte[] source = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, source);
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+        String before = first.toString();
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(-7, 2));
+
+        assertEquals(before, first.toString());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, source);
+        Tuple replaced = page.iterator().next();
+        assertEquals(slot, replaced.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(-7, 2), replaced));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator() racing insertTuple() and
+     * deleteTuple(): every tuple handed out is one that was inserted whole.
+     */
+    @Test public void iteratorRacesUpdates() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int v = 1; v <= 20000; v++) {
+                    Tuple t = Utility.getHeapTuple(new int[] { v, -v });
+                    page.insertTuple(t);
+                    page.deleteTuple(t);
+                }
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } finally {
+                done.set(true);
+            }
+        });
+        writer.start();
+        while (!done.get()) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int a = ((IntField) t.getField(0)).getValue();
+                int b = ((IntField) t.getField(1)).getValue();
+                assertTrue("torn tuple " + a + ", " + b, a > 0 && b == -a);
+            }
+        }
+        writer.join();
+    }
+
     /**
      * JUnit suite target
      */
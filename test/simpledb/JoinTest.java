@@ -5,6 +5,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -15,6 +19,7 @@ import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -112,6 +117,50 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Join reads child2 once per block of child1 tuples, and joins the same
+   * tuples whatever the block size.
+   */
+  @Test public void blockNestedLoops() throws Exception {
+    List<Tuple> outer = new ArrayList<>();
+    List<Tuple> inner = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      outer.add(Utility.getHeapTuple(new int[] { (i * 37) % 50, i }));
+    }
+    for (int i = 0; i < 30; i++) {
+      inner.add(Utility.getHeapTuple(new int[] { (i * 11) % 40 }));
+    }
+    TupleDesc td = Utility.getTupleDesc(2);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    List<String> expected = null;
+    for (int blockSize : new int[] { 1, 7, 10, 100, 1000 }) {
+      final int[] rewinds = { 0 };
+      OpIterator scan = new TupleIterator(Utility.getTupleDesc(1), inner) {
+        @Override public void rewind() {
+          rewinds[0]++;
+          super.rewind();
+        }
+      };
+      Join op = new Join(pred, new TupleIterator(td, outer), scan);
+      long perTuple = Join.DEFAULT_MEMORY_BUDGET / Join.blockSize(td.getSize(), Join.DEFAULT_MEMORY_BUDGET);
+      op.setMemoryBudget(blockSize * perTuple);
+      assertEquals(blockSize, Join.blockSize(td.getSize(), op.getMemoryBudget()));
+      List<String> joined = new ArrayList<>();
+      op.open();
+      while (op.hasNext()) {
+        joined.add(op.next().toString());
+      }
+      op.close();
+      Collections.sort(joined);
+      assertEquals((100 + blockSize - 1) / blockSize - 1, rewinds[0]);
+      if (expected == null) {
+        expected = joined;
+        assertTrue(expected.size() > 0);
+      }
+      assertEquals(expected, joined);
+    }
+  }
+
   /**
    * JUnit suite target
    */
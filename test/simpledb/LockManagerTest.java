@@ -0,0 +1,228 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the page locks BufferPool takes in getPage, beyond the
+ * single-lock cases of LockingTest.
+ */
+public class LockManagerTest extends SimpleDbTestBase {
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    private PageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * transactionComplete releases every lock of the transaction, and only
+     * those.
+     */
+    @Test public void completeReleasesAllLocks() throws Exception {
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            bp.getPage(tid1, pid(pgNo), pgNo % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+        }
+        bp.getPage(tid2, pid(0), Permissions.READ_ONLY);
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            assertTrue(bp.holdsLock(tid1, pid(pgNo)));
+        }
+
+        bp.transactionComplete(tid1, true);
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            assertFalse(bp.holdsLock(tid1, pid(pgNo)));
+        }
+        assertTrue(bp.holdsLock(tid2, pid(0)));
+        bp.getPage(tid2, pid(1), Permissions.READ_WRITE);
+    }
+
+    /**
+     * An upgrade waits while another transaction shares the page, and is
+     * granted once that transaction completes.
+     */
+    @Test public void upgradeWaitsForOtherReaders() throws Exception {
+        bp.getPage(tid1, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid2, pid(0), Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber upgrade = new TestUtil.LockGrabber(tid1, pid(0), Permissions.READ_WRITE);
+        upgrade.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(upgrade.acquired());
+
+        bp.transactionComplete(tid2, true);
+        upgrade.join();
+        assertTrue(upgrade.acquired());
+        assertNull(upgrade.getError());
+    }
+
+    /**
+     * unsafeReleasePage drops the lock on one page and keeps the others.
+     */
+    @Test public void releaseOnePage() throws Exception {
+        bp.getPage(tid1, pid(0), Permissions.READ_WRITE);
+        bp.getPage(tid1, pid(1), Permissions.READ_WRITE);
+        bp.unsafeReleasePage(tid1, pid(0));
+        assertFalse(bp.holdsLock(tid1, pid(0)));
+        assertTrue(bp.holdsLock(tid1, pid(1)));
+
+        bp.getPage(tid2, pid(0), Permissions.READ_WRITE);
+        TestUtil.LockGrabber blocked = new TestUtil.LockGrabber(tid2, pid(1), Permissions.READ_ONLY);
+        blocked.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(blocked.acquired());
+        bp.transactionComplete(tid1, true);
+        blocked.join();
+        assertTrue(blocked.acquired());
+    }
+
+    /**
+     * Two transactions waiting for each other's page: the younger one is
+     * aborted as soon as the cycle closes, and the older one then proceeds.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        bp.getPage(tid1, pid(0), Permissions.READ_WRITE);
+        bp.getPage(tid2, pid(1), Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber older = new TestUtil.LockGrabber(tid1, pid(1), Permissions.READ_WRITE);
+        older.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(older.acquired());
+
+        long start = System.currentTimeMillis();
+        try {
+            bp.getPage(tid2, pid(0), Permissions.READ_WRITE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        assertEquals(1, bp.getDeadlockAborts());
+        assertTrue(bp.getDeadlockChecks() >= 2);
+
+        bp.transactionComplete(tid2, false);
+        older.join();
+        assertTrue(older.acquired());
+    }
+
+    /**
+     * Two readers that both upgrade deadlock; when the older one closes the
+     * cycle, the younger waiter is woken and aborted instead.
+     */
+    @Test public void upgradeDeadlockAbortsWaitingVictim() throws Exception {
+        bp.getPage(tid1, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid2, pid(0), Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber younger = new TestUtil.LockGrabber(tid2, pid(0), Permissions.READ_WRITE);
+        younger.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(younger.acquired());
+
+        TestUtil.LockGrabber older = new TestUtil.LockGrabber(tid1, pid(0), Permissions.READ_WRITE);
+        older.start();
+        younger.join();
+        older.join();
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+        assertTrue(older.acquired());
+        assertEquals(1, bp.getDeadlockAborts());
+    }
+
+    /**
+     * Readers and writers of different pages of one table only share
+     * intention locks on the table, which do not conflict.
+     */
+    @Test public void intentionLocksDoNotConflict() throws Exception {
+        bp.getPage(tid1, pid(0), Permissions.READ_WRITE);
+        bp.getPage(tid2, pid(1), Permissions.READ_ONLY);
+        bp.getPage(tid2, pid(2), Permissions.READ_WRITE);
+        assertFalse(bp.holdsLock(tid1, pid(1)));
+        assertEquals(0, bp.getLockEscalations());
+    }
+
+    /**
+     * A reader past the threshold gets a shared table lock, which covers
+     * the other pages and keeps writers out of the whole table.
+     */
+    @Test public void readLocksEscalate() throws Exception {
+        bp.setLockEscalationThreshold(2);
+        for (int pgNo = 0; pgNo < 3; pgNo++) {
+            bp.getPage(tid1, pid(pgNo), Permissions.READ_ONLY);
+        }
+        assertEquals(1, bp.getLockEscalations());
+        assertTrue(bp.holdsLock(tid1, pid(3)));
+
+        bp.getPage(tid2, pid(3), Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, pid(3), Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(tid1, true);
+        writer.join();
+        assertTrue(writer.acquired());
+    }
+
+    /**
+     * A writer past the threshold gets an exclusive table lock; aborting it
+     * still rolls back the pages it changed without page locks.
+     */
+    @Test public void writeLocksEscalate() throws Exception {
+        bp.setLockEscalationThreshold(2);
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            HeapPage page = (HeapPage) bp.getPage(tid1, pid(pgNo), Permissions.READ_WRITE);
+            bp.deleteTuple(tid1, page.iterator().next());
+        }
+        assertEquals(1, bp.getLockEscalations());
+
+        bp.transactionComplete(tid1, false);
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            HeapPage page = (HeapPage) bp.getPage(tid2, pid(pgNo), Permissions.READ_ONLY);
+            assertEquals(0, page.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Escalation does not wait for a conflicting table lock; the page locks
+     * are kept instead.
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        bp.setLockEscalationThreshold(2);
+        bp.getPage(tid2, pid(3), Permissions.READ_WRITE);
+        for (int pgNo = 0; pgNo < 3; pgNo++) {
+            bp.getPage(tid1, pid(pgNo), Permissions.READ_ONLY);
+        }
+        assertEquals(0, bp.getLockEscalations());
+        assertFalse(bp.holdsLock(tid1, pid(3)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
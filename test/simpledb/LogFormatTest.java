@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LogFormatTest extends SimpleDbTestBase {
+    private File logFile;
+    private LogFile log;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        logFile = File.createTempFile("formatlog", ".dat");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile, LOG_SEGMENT_SIZE);
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+    }
+
+    @After public void tearDown() {
+        log.shutdown();
+        TestUtil.deleteLog(logFile);
+    }
+
+    /**
+     * An UPDATE record of a one tuple change is tens of bytes, not two page
+     * images, and print() can decode it.
+     */
+    @Test public void oneTupleUpdateIsSmall() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getLogEnd();
+
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        HeapPage after = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        Tuple t = after.iterator().next();
+        after.deleteTuple(t);
+        log.logWrite(tid, before, after);
+        long updateSize = log.getLogEnd() - start;
+        assertTrue("UPDATE record of " + updateSize + " bytes", updateSize < 100);
+
+        // a tuple insert changes the header bit and the tuple's bytes
+        before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        after = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        after.deleteTuple(after.iterator().next());
+        after.insertTuple(t);
+        start = log.getLogEnd();
+        log.logWrite(tid, before, after);
+        assertTrue(log.getLogEnd() - start < 100);
+
+        log.logCommit(tid);
+        log.print();
+    }
+
+    /**
+     * An unchanged page logs no ranges at all.
+     */
+    @Test public void unchangedPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        long start = log.getLogEnd();
+        log.logWrite(tid, page, page);
+        // type, tid, page type, table, page number, range count, offset
+        assertEquals(4 + 8 + 1 + 4 + 4 + 4 + 8, log.getLogEnd() - start);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @After public void tearDown() {
+        bp.stopPageCleaner();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Delete the first tuple of a page on behalf of tid. */
+    private void deleteOne(TransactionId tid, int pgNo) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid(pgNo), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    private int emptySlotsOnDisk(int pgNo) {
+        return ((HeapPage) hf.readPage(pid(pgNo))).getNumEmptySlots();
+    }
+
+    /**
+     * With the cleaner running, commit leaves pages dirty; a cleaning pass
+     * writes them with one write per run, and leaves uncommitted pages alone.
+     */
+    @Test public void cleansCommittedPagesOnly() throws Exception {
+        bp.startPageCleaner(3600 * 1000);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        deleteOne(tid1, 3);
+        deleteOne(tid1, 1);
+        deleteOne(tid1, 2);
+        deleteOne(tid2, 5);
+        bp.transactionComplete(tid1, true);
+
+        assertEquals(0, emptySlotsOnDisk(1));
+        assertEquals(tid1, bp.getPage(tid1, pid(1), Permissions.READ_ONLY).isDirty());
+
+        assertEquals(3, bp.cleanPages());
+        assertEquals(3, bp.getCleanedPages());
+        assertEquals(1, bp.getCleanerWrites());
+        for (int pgNo = 1; pgNo <= 3; pgNo++) {
+            assertEquals(1, emptySlotsOnDisk(pgNo));
+            assertNull(bp.getPage(tid1, pid(pgNo), Permissions.READ_ONLY).isDirty());
+        }
+        assertEquals(0, emptySlotsOnDisk(5));
+        assertEquals(tid2, bp.getPage(tid2, pid(5), Permissions.READ_ONLY).isDirty());
+        assertEquals(0, bp.cleanPages());
+
+        // an aborted page holds committed data again and may be cleaned
+        bp.transactionComplete(tid2, false);
+        HeapPage restored = (HeapPage) bp.getPage(tid2, pid(5), Permissions.READ_ONLY);
+        assertEquals(0, restored.getNumEmptySlots());
+        assertEquals(1, bp.cleanPages());
+        assertEquals(0, emptySlotsOnDisk(5));
+    }
+
+    /**
+     * The cleaner thread writes committed pages on its own.
+     */
+    @Test public void backgroundCleaning() throws Exception {
+        bp.startPageCleaner(10);
+        TransactionId tid = new TransactionId();
+        deleteOne(tid, 0);
+        bp.transactionComplete(tid, true);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (emptySlotsOnDisk(0) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, emptySlotsOnDisk(0));
+    }
+
+    /**
+     * Stopping the cleaner wakes it rather than interrupting it, so a
+     * long interval does not delay stop(), and stopping it while it writes
+     * leaves the table's file open for other readers.
+     */
+    @Test(timeout = 60000) public void stopDuringWrites() throws Exception {
+        bp.startPageCleaner(3600 * 1000);
+        bp.stopPageCleaner();
+
+        Throwable[] failure = {null};
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    for (int pgNo = 0; pgNo < 6; pgNo++) {
+                        hf.readPage(pid(pgNo));
+                    }
+                }
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 50; i++) {
+            bp.startPageCleaner(1);
+            TransactionId tid = new TransactionId();
+            deleteOne(tid, i % 6);
+            bp.transactionComplete(tid, true);
+            bp.cleanPages();
+            bp.stopPageCleaner();
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure[0]);
+    }
+
+    /**
+     * A run that cannot be written fails cleanPages() and stays dirty; the
+     * other runs are still written.
+     */
+    @Test public void failedWritesAreReported() throws Exception {
+        Database.getCatalog().addTable(new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public void writePages(PageId first, byte[][] data) throws IOException {
+                if (first.getPageNumber() == 1) {
+                    throw new IOException("disk full");
+                }
+                super.writePages(first, data);
+            }
+        }, "broken");
+        bp.startPageCleaner(3600 * 1000);
+        TransactionId tid = new TransactionId();
+        deleteOne(tid, 1);
+        deleteOne(tid, 3);
+        bp.transactionComplete(tid, true);
+
+        try {
+            bp.cleanPages();
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertEquals(1, bp.getCleanedPages());
+        assertEquals(0, emptySlotsOnDisk(1));
+        assertEquals(1, emptySlotsOnDisk(3));
+        assertEquals(tid, bp.getPage(tid, pid(1), Permissions.READ_ONLY).isDirty());
+    }
+
+    /**
+     * Without the cleaner, commit writes the pages (FORCE), and eviction
+     * refuses to write pages of running transactions (NO-STEAL).
+     */
+    @Test public void forceAndNoSteal() throws Exception {
+        bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        deleteOne(tid, 0);
+        deleteOne(tid, 1);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(0, emptySlotsOnDisk(0));
+
+        bp.transactionComplete(tid, true);
+        assertEquals(1, emptySlotsOnDisk(0));
+        assertEquals(1, emptySlotsOnDisk(1));
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertEquals(0, bp.getDirtyEvictions());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
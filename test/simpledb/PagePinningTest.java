@@ -0,0 +1,110 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageHandle;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PagePinningTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * A pinned page stays cached while other pages cycle through the pool.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        try (PageHandle handle = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY)) {
+            Page pinned = handle.getPage();
+            for (int pgNo = 1; pgNo < 6; pgNo++) {
+                bp.getPage(tid, pid(pgNo), Permissions.READ_ONLY);
+            }
+            assertSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+            assertTrue(bp.getPinnedEvictionSkips() > 0);
+        }
+    }
+
+    /**
+     * Once every frame is pinned there is nothing to evict.
+     */
+    @Test public void allFramesPinned() throws Exception {
+        try (PageHandle h0 = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+             PageHandle h1 = bp.getPinnedPage(tid, pid(1), Permissions.READ_ONLY)) {
+            assertEquals(pid(0), h0.getPage().getId());
+            assertEquals(pid(1), h1.getPage().getId());
+            try {
+                bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+                fail("expected DbException");
+            } catch (DbException e) {
+                // expected
+            }
+        }
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Pin counts and the peak are reported, and closing a handle twice
+     * releases only its own pin.
+     */
+    @Test public void pinMetrics() throws Exception {
+        PageHandle a = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+        PageHandle b = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+        PageHandle c = bp.getPinnedPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinnedPages());
+        assertEquals(Integer.valueOf(2), bp.getPinCounts().get(pid(0)));
+        assertEquals(Integer.valueOf(1), bp.getPinCounts().get(pid(1)));
+
+        a.close();
+        a.close();
+        assertEquals(Integer.valueOf(1), bp.getPinCounts().get(pid(0)));
+        b.close();
+        c.close();
+        assertEquals(0, bp.getPinnedPages());
+        assertTrue(bp.getPinCounts().isEmpty());
+        assertEquals(2, bp.getPeakPinnedPages());
+    }
+
+    /**
+     * An unpinned page can be evicted again.
+     */
+    @Test public void unpinnedPageIsEvictable() throws Exception {
+        Page page;
+        try (PageHandle handle = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY)) {
+            page = handle.getPage();
+        }
+        for (int pgNo = 1; pgNo < 6; pgNo++) {
+            bp.getPage(tid, pid(pgNo), Permissions.READ_ONLY);
+        }
+        assertNotSame(page, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagePinningTest.class);
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageHandle;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PrefetchTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, tuples);
+    }
+
+    /**
+     * A full scan reads ahead, and every page read ahead is used.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES * 2);
+        bp.setPrefetchDepth(8);
+        assertEquals(8, bp.getPrefetchDepth());
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertTrue(bp.getPrefetchesIssued() > 0);
+        assertEquals(bp.getPrefetchesIssued(), bp.getPrefetchHits());
+        assertEquals(0, bp.getPrefetchesWasted());
+        System.out.printf("PrefetchTest: issued %d, hits %d, wasted %d%n",
+                bp.getPrefetchesIssued(), bp.getPrefetchHits(), bp.getPrefetchesWasted());
+    }
+
+    /**
+     * A scan larger than the pool reads ahead into its ring.
+     */
+    @Test public void ringScanReadsAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES / 2);
+        bp.setPrefetchDepth(4);
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertTrue(bp.getPrefetchHits() > 0);
+    }
+
+    /**
+     * A page that is written after it was read ahead must not be served from
+     * the stale copy.
+     */
+    @Test public void writeInvalidatesPrefetch() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES * 2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        bp.prefetch(pid);
+        assertEquals(1, bp.getPrefetchesIssued());
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        hf.writePage(page);
+        bp.discardPage(pid);
+
+        assertEquals(1, bp.getPrefetchesWasted());
+        HeapPage read = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, read.getNumEmptySlots());
+        assertEquals(0, bp.getPrefetchHits());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages read ahead take free frames of the pool, at most a small window
+     * of them, and give a frame back to a miss that finds no other page to
+     * evict.
+     */
+    @Test public void stagedPagesUseFreeFrames() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(PAGES * 2);
+        bp.setPrefetchDepth(PAGES);
+        assertTrue(bp.getPrefetchDepth() < PAGES / 2);
+        for (int i = 0; i < PAGES; i++) {
+            bp.prefetch(new HeapPageId(hf.getId(), i));
+        }
+        int staged = (int) (bp.getPrefetchesIssued() - bp.getPrefetchesWasted());
+        assertTrue(staged > 0 && staged < PAGES / 2);
+
+        // pin pages into every free frame; the next miss drops a staged page
+        TransactionId tid = new TransactionId();
+        List<PageHandle> pinned = new ArrayList<>();
+        for (int i = 0; i < PAGES * 2 - staged; i++) {
+            pinned.add(bp.getPinnedPage(tid, new HeapPageId(other.getId(), i), Permissions.READ_ONLY));
+        }
+        long wasted = bp.getPrefetchesWasted();
+        pinned.add(bp.getPinnedPage(tid, new HeapPageId(other.getId(), PAGES * 2 - staged),
+                Permissions.READ_ONLY));
+        assertEquals(wasted + 1, bp.getPrefetchesWasted());
+
+        // with no free frame, nothing is read ahead
+        long issued = bp.getPrefetchesIssued();
+        bp.prefetch(new HeapPageId(hf.getId(), 0));
+        assertEquals(issued, bp.getPrefetchesIssued());
+        for (PageHandle h : pinned) {
+            h.close();
+        }
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void depthZeroDisables() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES * 2);
+        bp.setPrefetchDepth(0);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(0, bp.getPrefetchesIssued());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetchTest.class);
+    }
+}
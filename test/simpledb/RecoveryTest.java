@@ -0,0 +1,198 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LogFile.recover() with several recovery threads. A crash leaves
+ * committed transactions whose pages need redo and unfinished ones whose
+ * stolen pages need undo, over several tables; recovery with one thread and
+ * with many must give the same tables, and the time of each is printed.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int TABLES = 8;
+    private static final int COMMITS_PER_TABLE = 6;
+    private static final int ROWS_PER_COMMIT = 400;
+    private static final int LOSER_ROWS = 300;
+
+    private final List<File> files = new ArrayList<>();
+    private final List<HeapFile> tables = new ArrayList<>();
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        files.clear();
+        tables.clear();
+        for (int i = 0; i < TABLES; i++) {
+            File f = File.createTempFile("recovery" + i, ".dat");
+            f.deleteOnExit();
+            files.add(f);
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+    }
+
+    private void insert(Transaction t, HeapFile hf, int value, int rows) throws Exception {
+        for (int i = 0; i < rows; i++) {
+            Tuple tup = new Tuple(hf.getTupleDesc());
+            tup.setField(0, new IntField(value));
+            tup.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+    }
+
+    /**
+     * Commit COMMITS_PER_TABLE transactions on every table, then leave one
+     * transaction per table unfinished with its pages written out.
+     */
+    private void runWorkload() throws Exception {
+        for (int c = 0; c < COMMITS_PER_TABLE; c++) {
+            for (HeapFile hf : tables) {
+                Transaction t = new Transaction();
+                t.start();
+                insert(t, hf, c, ROWS_PER_COMMIT);
+                t.commit();
+            }
+        }
+        for (HeapFile hf : tables) {
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, hf, -1, LOSER_ROWS);
+        }
+        Database.getBufferPool().flushAllPages(); // something to undo
+    }
+
+    /** Restart, and recover with the given number of threads. */
+    private LogFile crashAndRecover(int threads) throws Exception {
+        Database.reset();
+        tables.clear();
+        for (File f : files) {
+            tables.add(Utility.openHeapFile(2, f));
+        }
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(threads);
+        log.recover();
+        return log;
+    }
+
+    /** @return the log's control file and its segment files */
+    private static List<File> logFiles() {
+        List<File> logFiles = new ArrayList<>();
+        File[] all = new File(".").listFiles();
+        for (File f : all == null ? new File[0] : all) {
+            if (f.getName().equals("log") || f.getName().startsWith("log.")) {
+                logFiles.add(f);
+            }
+        }
+        return logFiles;
+    }
+
+    /** @return the number of rows of each value, the loser's value -1 at index 0 */
+    private int[] counts(HeapFile hf) throws Exception {
+        int[] counts = new int[COMMITS_PER_TABLE + 1];
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            counts[((IntField) it.next().getField(0)).getValue() + 1]++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return counts;
+    }
+
+    private void assertRecovered() throws Exception {
+        for (HeapFile hf : tables) {
+            int[] counts = counts(hf);
+            assertEquals(0, counts[0]);
+            for (int c = 1; c <= COMMITS_PER_TABLE; c++) {
+                assertEquals(ROWS_PER_COMMIT, counts[c]);
+            }
+        }
+    }
+
+    /**
+     * Recovery redoes the committed updates, undoes the unfinished
+     * transactions, and logs their aborts so a second recovery finds
+     * nothing left to undo.
+     */
+    @Test public void recoverInParallel() throws Exception {
+        runWorkload();
+        LogFile log = crashAndRecover(4);
+        assertTrue(log.getRedonePages() > 0);
+        assertEquals(TABLES, log.getUndoneTransactions());
+        assertRecovered();
+
+        log = crashAndRecover(4);
+        assertEquals(0, log.getUndoneTransactions());
+        assertRecovered();
+    }
+
+    /**
+     * Recovering the same crash with one thread and with one per processor
+     * gives the same tables; prints the time of each.
+     */
+    @Test public void recoveryTime() throws Exception {
+        runWorkload();
+        File savedLog = Files.createTempDirectory("recoverylog").toFile();
+        savedLog.deleteOnExit();
+        for (File f : logFiles()) {
+            File copy = new File(savedLog, f.getName());
+            copy.deleteOnExit();
+            Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<File> savedTables = new ArrayList<>();
+        for (File f : files) {
+            File copy = File.createTempFile("recoverytable", ".dat");
+            copy.deleteOnExit();
+            Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            savedTables.add(copy);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{1, cores}) {
+            // crashAndRecover() opens the restored log
+            for (File f : logFiles()) {
+                f.delete();
+            }
+            for (File f : savedLog.listFiles()) {
+                Files.copy(f.toPath(), new File(f.getName()).toPath());
+            }
+            for (int i = 0; i < TABLES; i++) {
+                Files.copy(savedTables.get(i).toPath(), files.get(i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            long start = System.nanoTime();
+            LogFile log = crashAndRecover(threads);
+            double millis = (System.nanoTime() - start) / 1e6;
+            assertEquals(TABLES, log.getUndoneTransactions());
+            assertRecovered();
+            System.out.printf("RecoveryTest: %2d threads: %8.1f ms, %d pages redone%n",
+                    threads, millis, log.getRedonePages());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 50;
+    private static final int HOT_PAGES = 30;
+    private static final int TABLE_PAGES = 400;
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Every policy evicts each tracked page exactly once, honours the
+     * evictable predicate and forgets removed pages.
+     */
+    @Test public void evictsTrackedPages() {
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            ReplacementPolicy policy = type.create(8);
+            assertNull(type.toString(), policy.evict(pid -> true));
+            for (int i = 0; i < 8; i++) {
+                policy.pageLoaded(page(i));
+            }
+            policy.pageAccessed(page(3));
+            policy.pageRemoved(page(5));
+            assertNull(type.toString(), policy.evict(pid -> false));
+
+            Set<PageId> evicted = new HashSet<>();
+            PageId pinned = page(0);
+            PageId victim;
+            while ((victim = policy.evict(pid -> !pid.equals(pinned))) != null) {
+                assertTrue(type + " evicted " + victim + " twice", evicted.add(victim));
+            }
+            assertEquals(type.toString(), 6, evicted.size());
+            assertFalse(type.toString(), evicted.contains(page(5)));
+            assertEquals(type.toString(), pinned, policy.evict(pid -> true));
+            assertNull(type.toString(), policy.evict(pid -> true));
+        }
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy lru = ReplacementPolicy.Type.LRU.create(3);
+        lru.pageLoaded(page(0));
+        lru.pageLoaded(page(1));
+        lru.pageLoaded(page(2));
+        lru.pageAccessed(page(0));
+        assertEquals(page(1), lru.evict(pid -> true));
+        assertEquals(page(2), lru.evict(pid -> true));
+        assertEquals(page(0), lru.evict(pid -> true));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy clock = ReplacementPolicy.Type.CLOCK.create(3);
+        clock.pageLoaded(page(0));
+        clock.pageLoaded(page(1));
+        clock.pageLoaded(page(2));
+        clock.pageAccessed(page(0));
+        clock.pageAccessed(page(1));
+        assertEquals(page(2), clock.evict(pid -> true));
+        assertEquals(page(0), clock.evict(pid -> true));
+    }
+
+    @Test public void forName() {
+        assertEquals(ReplacementPolicy.Type.TWO_Q, ReplacementPolicy.Type.forName("2q"));
+        assertEquals(ReplacementPolicy.Type.LRU_K, ReplacementPolicy.Type.forName("LRU-K"));
+        assertEquals(ReplacementPolicy.Type.ARC, ReplacementPolicy.Type.forName("arc"));
+        assertEquals(ReplacementPolicy.Type.CLOCK, ReplacementPolicy.Type.forName("CLOCK"));
+        try {
+            ReplacementPolicy.Type.forName("mru");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Point lookups, 90% of them on a hot set that fits in the cache,
+     * interleaved with full scans of a table eight times the size of the
+     * cache.
+     */
+    private static List<PageId> mixedTrace(long seed) {
+        Random r = new Random(seed);
+        List<PageId> trace = new ArrayList<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 1000; i++) {
+                int pgNo = r.nextInt(10) < 9 ? r.nextInt(HOT_PAGES) : HOT_PAGES + r.nextInt(1000);
+                trace.add(page(TABLE_PAGES + pgNo));
+            }
+            for (int i = 0; i < TABLE_PAGES; i++) {
+                trace.add(page(i));
+            }
+        }
+        return trace;
+    }
+
+    /** Skewed point lookups only: 80% of lookups go to 20% of the pages. */
+    private static List<PageId> skewedTrace(long seed) {
+        Random r = new Random(seed);
+        List<PageId> trace = new ArrayList<>();
+        int hot = CAPACITY / 2;
+        for (int i = 0; i < 20000; i++) {
+            trace.add(page(r.nextInt(5) < 4 ? r.nextInt(hot) : hot + r.nextInt(CAPACITY * 4)));
+        }
+        return trace;
+    }
+
+    /** Replays trace against a cache of CAPACITY pages and returns the hit ratio. */
+    private static double replay(ReplacementPolicy.Type type, List<PageId> trace) {
+        ReplacementPolicy policy = type.create(CAPACITY);
+        Set<PageId> cached = new HashSet<>();
+        int hits = 0;
+        for (PageId pid : trace) {
+            if (cached.contains(pid)) {
+                hits++;
+                policy.pageAccessed(pid);
+                continue;
+            }
+            if (cached.size() == CAPACITY) {
+                assertTrue(cached.remove(policy.evict(p -> true)));
+            }
+            cached.add(pid);
+            policy.pageLoaded(pid);
+        }
+        return (double) hits / trace.size();
+    }
+
+    /**
+     * Benchmark: replay the traces against every policy and report the hit
+     * ratios. The scan resistant policies must beat LRU on the mixed trace.
+     */
+    @Test public void hitRatios() {
+        List<PageId> mixed = mixedTrace(0);
+        List<PageId> skewed = skewedTrace(0);
+        double lru = replay(ReplacementPolicy.Type.LRU, mixed);
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            double m = replay(type, mixed);
+            double s = replay(type, skewed);
+            System.out.printf("ReplacementPolicyTest: %-6s scan+lookup %.3f, skewed lookup %.3f%n", type, m, s);
+            if (type == ReplacementPolicy.Type.TWO_Q || type == ReplacementPolicy.Type.LRU_K
+                    || type == ReplacementPolicy.Type.ARC) {
+                assertTrue(type + " should beat lru on scans", m > lru);
+            }
+        }
+    }
+
+    /**
+     * Random lookups through a BufferPool smaller than the table, with each
+     * policy.
+     */
+    @Test public void bufferPoolWithEachPolicy() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        TransactionId tid = new TransactionId();
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            BufferPool bp = new BufferPool(16, type);
+            assertEquals(type, bp.getReplacementPolicy());
+            Random r = new Random(1);
+            for (int i = 0; i < 1000; i++) {
+                int pgNo = r.nextInt(40);
+                assertEquals(pgNo, bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), null)
+                        .getId().getPageNumber());
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for a log split into small segment files: truncation releases and
+ * recycles the segments behind the checkpoint and the oldest active
+ * transaction, recovery reads records across segments and stops at the
+ * stale bytes of a recycled one, and appends go through the log buffer to
+ * preallocated files.
+ */
+public class SegmentedLogTest extends SimpleDbTestBase {
+    private static final long SEGMENT_SIZE = 4096;
+
+    private File logFile;
+    private LogFile log;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File dir = Files.createTempDirectory("segmentedlog").toFile();
+        logFile = new File(dir, "log");
+        log = new LogFile(logFile, SEGMENT_SIZE);
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+    }
+
+    @After public void tearDown() {
+        for (File f : logFile.getParentFile().listFiles()) {
+            f.delete();
+        }
+        logFile.getParentFile().delete();
+    }
+
+    /** Log and commit transactions of updates that change no bytes. */
+    private void commit(int transactions, int updates) throws Exception {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        for (int t = 0; t < transactions; t++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int u = 0; u < updates; u++) {
+                log.logWrite(tid, page, page);
+            }
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * A checkpoint releases the segments behind it, and later segments
+     * reuse their files.
+     */
+    @Test public void releasesAndRecyclesSegments() throws Exception {
+        commit(20, 50);
+        int segments = log.getLogSegments();
+        assertTrue(segments > 5);
+
+        log.logCheckpoint();
+        assertEquals(segments - 1, log.getReleasedSegments());
+        assertTrue(log.getLogSegments() <= 2);
+
+        commit(5, 50);
+        assertTrue(log.getRecycledSegments() > 0);
+        File[] files = logFile.getParentFile().listFiles();
+        assertEquals(1 + log.getLogSegments() + 2 - log.getRecycledSegments(), files.length);
+    }
+
+    /**
+     * The segments from the first record of an active transaction on are
+     * kept until it completes.
+     */
+    @Test public void activeTransactionPinsSegments() throws Exception {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        log.logWrite(open, page, page);
+        commit(20, 50);
+        int segments = log.getLogSegments();
+
+        log.logCheckpoint();
+        assertEquals(0, log.getReleasedSegments());
+        assertEquals(segments, log.getLogSegments());
+
+        log.logCommit(open);
+        log.logCheckpoint();
+        assertTrue(log.getReleasedSegments() >= segments - 1);
+    }
+
+    /**
+     * Recovery redoes a commit whose records follow recycled segments, and
+     * ends the log at its last record.
+     */
+    @Test public void recoversAfterRecycling() throws Exception {
+        commit(20, 50);
+        log.logCheckpoint();
+        commit(5, 50);
+        assertTrue(log.getRecycledSegments() > 0);
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = (HeapPage) hf.readPage(pid);
+        after.deleteTuple(after.iterator().next());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+        long end = log.getLogEnd();
+
+        // crash: the update was never written to the table
+        LogFile recovered = new LogFile(logFile, SEGMENT_SIZE);
+        recovered.recover();
+        assertEquals(end, recovered.getLogEnd());
+        assertEquals(before.getNumEmptySlots() + 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Truncation keeps the records of a transaction that was active at the
+     * checkpoint after it commits, as recovery starts scanning at its
+     * first record.
+     */
+    @Test public void keepsTransactionsActiveAtCheckpoint() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = (HeapPage) hf.readPage(pid);
+        after.deleteTuple(after.iterator().next());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        commit(20, 50);
+        log.logCheckpoint();
+        log.logCommit(tid);
+        log.logTruncate();
+        assertEquals(0, log.getReleasedSegments());
+
+        // crash: the update was never written to the table
+        LogFile recovered = new LogFile(logFile, SEGMENT_SIZE);
+        recovered.recover();
+        assertEquals(before.getNumEmptySlots() + 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * The records of a transaction are buffered, and reach the log with one
+     * write when it commits, or two if they span a segment boundary.
+     */
+    @Test public void bufferedAppends() throws Exception {
+        commit(1, 10);
+        long writes = log.getLogWrites();
+        commit(1, 50);
+        assertTrue(log.getLogWrites() - writes <= 2);
+    }
+
+    /**
+     * Segment files are allocated in full, and the file of the next segment
+     * is allocated in the background as soon as a segment is created.
+     */
+    @Test public void preallocatesSegments() throws Exception {
+        commit(1, 1);
+        log.shutdown(); // waits for the next segment's file
+        File[] files = logFile.getParentFile().listFiles((dir, name) -> !name.equals("log"));
+        assertEquals(2, files.length);
+        for (File f : files) {
+            assertEquals(SEGMENT_SIZE, f.length());
+        }
+        assertEquals(1, logFile.getParentFile().listFiles((dir, name) -> name.startsWith("log.spare")).length);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SegmentedLogTest.class);
+    }
+}
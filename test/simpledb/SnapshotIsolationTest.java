@@ -0,0 +1,176 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    private int emptySlots(TransactionId tid, int pgNo) throws Exception {
+        return ((HeapPage) bp.getPage(tid, pid(pgNo), Permissions.READ_ONLY)).getNumEmptySlots();
+    }
+
+    /** Delete the first tuple of a page on behalf of tid. */
+    private void deleteOne(TransactionId tid, int pgNo) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid(pgNo), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    /**
+     * A snapshot reads past a writer's exclusive lock, does not see its
+     * changes, and keeps reading the old version after the writer commits.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer, 0);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(0, emptySlots(reader.getId(), 0));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(1, bp.getSnapshotVersions());
+        assertEquals(0, emptySlots(reader.getId(), 0));
+        assertTrue(bp.getSnapshotVersionReads() > 0);
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(1, emptySlots(later.getId(), 0));
+        later.commit();
+        reader.commit();
+    }
+
+    /**
+     * Snapshot reads take no locks, so writers do not wait for them.
+     */
+    @Test public void writersDoNotWaitForSnapshots() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            emptySlots(reader.getId(), pgNo);
+            assertFalse(bp.holdsLock(reader.getId(), pid(pgNo)));
+        }
+        TransactionId writer = new TransactionId();
+        deleteOne(writer, 2);
+        bp.transactionComplete(writer, true);
+        assertEquals(0, emptySlots(reader.getId(), 2));
+        reader.commit();
+    }
+
+    /**
+     * Versions are kept only while a snapshot may read them.
+     */
+    @Test public void versionsAreCollected() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer, 0);
+        bp.transactionComplete(writer, true);
+        assertEquals(0, bp.getSnapshotVersions());
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        writer = new TransactionId();
+        deleteOne(writer, 0);
+        deleteOne(writer, 1);
+        bp.transactionComplete(writer, true);
+        assertEquals(2, bp.getSnapshotVersions());
+        assertEquals(1, emptySlots(reader.getId(), 0));
+        assertEquals(0, emptySlots(reader.getId(), 1));
+
+        reader.commit();
+        assertEquals(0, bp.getSnapshotVersions());
+        assertEquals(2, bp.getCollectedVersions());
+    }
+
+    /**
+     * Snapshots scan the table as of their start, and cannot write.
+     */
+    @Test public void snapshotsAreReadOnly() throws Exception {
+        TransactionId writer = new TransactionId();
+        Transaction reader = new Transaction(true);
+        reader.start();
+        deleteOne(writer, 3);
+        bp.transactionComplete(writer, true);
+
+        DbFileIterator it = hf.iterator(reader.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 4, count);
+        try {
+            deleteOne(reader.getId(), 1);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        reader.commit();
+    }
+
+    /**
+     * A page written to disk and evicted before its writer finishes is read
+     * back with uncommitted changes; snapshots still read the committed
+     * image, whether the writer then commits or aborts.
+     */
+    @Test public void stolenPagesKeepCommittedImage() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        for (boolean commit : new boolean[]{true, false}) {
+            int pgNo = commit ? 0 : 1;
+            Transaction writer = new Transaction();
+            writer.start();
+            deleteOne(writer.getId(), pgNo);
+            bp.flushPages(writer.getId());
+            bp.discardPage(pid(pgNo));
+            assertEquals(0, emptySlots(reader.getId(), pgNo));
+            if (commit) {
+                writer.commit();
+            } else {
+                writer.abort();
+            }
+            assertEquals(0, emptySlots(reader.getId(), pgNo));
+        }
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(1, emptySlots(later.getId(), 0));
+        assertEquals(0, emptySlots(later.getId(), 1));
+        later.commit();
+        reader.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that SortMergeJoin joins sorted inputs like a nested loops join,
+ * and that the optimizer picks it when both inputs are sorted on the join
+ * fields.
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int MAX_VALUE = 40;
+
+    private TransactionId tid;
+    private HeapFile left;
+    private HeapFile right;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        left = SystemTestUtil.createRandomHeapFile(2, 300, MAX_VALUE, null, new ArrayList<>(), "a");
+        right = SystemTestUtil.createRandomHeapFile(3, 200, MAX_VALUE, null, new ArrayList<>(), "b");
+    }
+
+    private static List<String> tuples(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next().toString());
+        }
+        it.close();
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    private OpIterator sorted(HeapFile f, int field) {
+        return new OrderBy(field, true, new SeqScan(tid, f.getId()));
+    }
+
+    @Test public void predicates() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ}) {
+            JoinPredicate p = new JoinPredicate(1, op, 2);
+            List<String> expected = tuples(new Join(p, new SeqScan(tid, left.getId()),
+                    new SeqScan(tid, right.getId())));
+            assertFalse(expected.isEmpty());
+            assertEquals(op.toString(), expected, tuples(new SortMergeJoin(p, sorted(left, 1), sorted(right, 2))));
+        }
+    }
+
+    /**
+     * A range join reads each input once, without rewinding either.
+     */
+    @Test public void rangeJoinsDoNotRewind() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ}) {
+            JoinPredicate p = new JoinPredicate(1, op, 2);
+            int[] rewinds = new int[1];
+            OpIterator l = new OrderBy(1, true, new SeqScan(tid, left.getId())) {
+                @Override public void rewind() {
+                    rewinds[0]++;
+                    super.rewind();
+                }
+            };
+            OpIterator r = new OrderBy(2, true, new SeqScan(tid, right.getId())) {
+                @Override public void rewind() {
+                    rewinds[0]++;
+                    super.rewind();
+                }
+            };
+            List<String> expected = tuples(new Join(p, new SeqScan(tid, left.getId()),
+                    new SeqScan(tid, right.getId())));
+            assertEquals(op.toString(), expected, tuples(new SortMergeJoin(p, l, r)));
+            assertEquals(op.toString(), 0, rewinds[0]);
+        }
+    }
+
+    @Test public void emptyInputs() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, MAX_VALUE, null, null);
+        assertTrue(tuples(new SortMergeJoin(p, sorted(empty, 0), sorted(right, 0))).isEmpty());
+        assertTrue(tuples(new SortMergeJoin(p, sorted(left, 0), sorted(empty, 0))).isEmpty());
+    }
+
+    @Test public void rewind() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<String> expected = tuples(new SortMergeJoin(p, sorted(left, 0), sorted(right, 0)));
+        SortMergeJoin j = new SortMergeJoin(p, sorted(left, 0), sorted(right, 0));
+        j.open();
+        for (int i = 0; i < 10 && j.hasNext(); i++) {
+            j.next();
+        }
+        j.rewind();
+        List<String> rewound = new ArrayList<>();
+        while (j.hasNext()) {
+            rewound.add(j.next().toString());
+        }
+        j.close();
+        Collections.sort(rewound);
+        assertEquals(expected, rewound);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupported() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), sorted(left, 0), sorted(right, 0));
+    }
+
+    /**
+     * The optimizer merge joins inputs sorted on the join fields, whether
+     * they are OrderBys or scans of BTreeFiles keyed on them, and hash or
+     * nested loops joins others.
+     */
+    @Test public void instantiateJoin() throws Exception {
+        String l = Database.getCatalog().getTableName(left.getId());
+        String r = Database.getCatalog().getTableName(right.getId());
+        LogicalJoinNode eq = new LogicalJoinNode(l, r, l + ".a1", r + ".b2", Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode(l, r, l + ".a1", r + ".b2", Predicate.Op.LESS_THAN);
+        LogicalJoinNode ne = new LogicalJoinNode(l, r, l + ".a1", r + ".b2", Predicate.Op.NOT_EQUALS);
+
+        assertTrue(JoinOptimizer.instantiateJoin(eq, sorted(left, 1), sorted(right, 2)) instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lt, sorted(left, 1), sorted(right, 2)) instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(ne, sorted(left, 1), sorted(right, 2)) instanceof Join);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, sorted(left, 0), sorted(right, 2)) instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, new SeqScan(tid, left.getId()),
+                new SeqScan(tid, right.getId())) instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, left.getId()),
+                new SeqScan(tid, right.getId())) instanceof Join);
+
+        File f = File.createTempFile("sortmerge", ".dat");
+        f.deleteOnExit();
+        BTreeFile index = BTreeUtility.openBTreeFile(3, "b", f, 2);
+        String b = Database.getCatalog().getTableName(index.getId());
+        LogicalJoinNode indexed = new LogicalJoinNode(l, b, l + ".a1", b + ".b2", Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(indexed, sorted(left, 1),
+                new SeqScan(tid, index.getId())) instanceof SortMergeJoin);
+        LogicalJoinNode unindexed = new LogicalJoinNode(l, b, l + ".a1", b + ".b1", Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(unindexed, sorted(left, 1),
+                new SeqScan(tid, index.getId())) instanceof HashEquiJoin);
+    }
+
+    /**
+     * A join of two BTreeFiles keyed on the join fields is costed as a
+     * merge join: one pass of each input.
+     */
+    @Test public void estimateJoinCost() throws Exception {
+        File f1 = File.createTempFile("sortmerge", ".dat");
+        f1.deleteOnExit();
+        File f2 = File.createTempFile("sortmerge", ".dat");
+        f2.deleteOnExit();
+        String a = Database.getCatalog().getTableName(BTreeUtility.openBTreeFile(2, "a", f1, 1).getId());
+        String b = Database.getCatalog().getTableName(BTreeUtility.openBTreeFile(3, "b", f2, 2).getId());
+        JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new ArrayList<>());
+
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN}) {
+            LogicalJoinNode keyed = new LogicalJoinNode(a, b, a + ".a1", b + ".b2", op);
+            assertEquals(op.toString(), 10 + 20 + 1000 + 2000,
+                    jo.estimateJoinCost(keyed, 1000, 2000, 10, 20), 0.0);
+        }
+        LogicalJoinNode unkeyed = new LogicalJoinNode(a, b, a + ".a0", b + ".b2", Predicate.Op.EQUALS);
+        assertTrue(jo.estimateJoinCost(unkeyed, 1000, 2000, 10, 20) > 1000.0 * 2000);
+        LogicalJoinNode ne = new LogicalJoinNode(a, b, a + ".a1", b + ".b2", Predicate.Op.NOT_EQUALS);
+        assertTrue(jo.estimateJoinCost(ne, 1000, 2000, 10, 20) > 1000.0 * 2000);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -3,12 +3,15 @@ package simpledb;
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
 import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
 
+import org.junit.After;
+
 import static org.junit.Assert.*;
 
 public class TestUtil {
@@ -192,6 +195,17 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * Delete the control file of a log and its segment and spare files.
+     */
+    public static void deleteLog(File control) {
+        File[] files = control.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.equals(control.getName()) || name.startsWith(control.getName() + "."));
+        for (File f : files == null ? new File[0] : files) {
+            f.delete();
+        }
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -389,6 +403,10 @@ public class TestUtil {
             }
         }
 
+        @After public void deleteFreeSpaceMaps() throws Exception {
+            SimpleDbTestBase.closeHeapFiles();
+        }
+
         protected HeapFile empty;
         private final File emptyFile;
     }
@@ -1,8 +1,14 @@
 package simpledb.systemtest;
 
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.After;
 import org.junit.Before;
 
 import simpledb.common.Database;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 
 /**
  * Base class for all SimpleDb test classes. 
@@ -10,11 +16,37 @@ import simpledb.common.Database;
  *
  */
 public class SimpleDbTestBase {
+	/** Log segment size of the tests' databases, unless one is configured */
+	public static final long LOG_SEGMENT_SIZE = 1 << 16;
+
+	static {
+		if (System.getProperty("simpledb.storage.LogSegmentSize") == null) {
+			System.setProperty("simpledb.storage.LogSegmentSize", String.valueOf(LOG_SEGMENT_SIZE));
+		}
+	}
+
 	/**
 	 * Reset the database before each test is run.
 	 */
 	@Before	public void setUp() throws Exception {					
 		Database.reset();
 	}
-	
+
+	@After public void deleteFreeSpaceMaps() throws Exception {
+		closeHeapFiles();
+	}
+
+	/**
+	 * Close the tables' heap files and delete the free space maps they
+	 * persist next to them.
+	 */
+	public static void closeHeapFiles() throws Exception {
+		for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+			DbFile file = Database.getCatalog().getDatabaseFile(it.next());
+			if (file instanceof HeapFile) {
+				((HeapFile) file).close();
+				new File(((HeapFile) file).getFile().getPath() + ".fsm").delete();
+			}
+		}
+	}
 }